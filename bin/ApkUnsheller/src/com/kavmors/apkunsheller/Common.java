@@ -6,4 +6,15 @@ public class Common {
 
     public static final String MAIN_APPLICATION = "SHELL_MAINAPPLICATION";
     public static final String VERSION = "SHELL_VERSION";
+    public static final String DEX_LOADER = "SHELL_DEX_LOADER";
+    public static final String HOT_DEX = "SHELL_HOT_DEX";
+    public static final String COLD_WAIT = "SHELL_COLD_WAIT";
+    public static final String TRACE = "SHELL_TRACE";
+
+    public static final String DEX_LOADER_DISK = "disk";
+    public static final String DEX_LOADER_MEMORY = "memory";
+    public static final String DEX_LOADER_ZIP = "zip";
+
+    public static final String TRACE_FILE = "file";
+    public static final String TRACE_LOG = "log";
 }
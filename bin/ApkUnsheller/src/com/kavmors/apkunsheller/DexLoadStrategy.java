@@ -0,0 +1,19 @@
+package com.kavmors.apkunsheller;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * dex加载方式
+ *    由packer写入的meta-data({@link Common#DEX_LOADER})选择,默认为{@link DiskDexLoader}
+ */
+public interface DexLoadStrategy {
+    /**
+     * 准备payload中的dex并创建ClassLoader
+     * @param thisApk 壳apk
+     * @param parent 原ClassLoader
+     * @return 加载payload的ClassLoader
+     * @throws IOException
+     */
+    ClassLoader load(File thisApk, ClassLoader parent) throws IOException;
+}
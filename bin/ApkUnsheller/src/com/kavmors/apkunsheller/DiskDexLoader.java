@@ -0,0 +1,454 @@
+package com.kavmors.apkunsheller;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import android.util.Log;
+import dalvik.system.DexClassLoader;
+import jcommon.util.FileUtils;
+import jcommon.util.ZipIndex;
+
+/**
+ * 解出dex文件到app_libs后通过DexClassLoader加载
+ *    指定hot dex时,首次解压只在主线程解出hot dex,其余dex在后台线程解出后追加到{@link GatedDexClassLoader}
+ */
+public class DiskDexLoader implements DexLoadStrategy {
+    private static final String TAG = "DiskDexLoader";
+    private static final String DEX_REGEX = "classes[0-9]*\\.dex";
+    private static final String PENDING = "shell.pending";   //解压未完成标记,存在时不使用md5校验
+    private File mLibs;
+    private String mVersion;
+    private File mOptimizedDir;
+    private String mNativeLibDir;
+    private Set<String> mHotDexes;
+    private long mColdWaitMs = GatedDexClassLoader.DEFAULT_WAIT_MS;
+
+    /**
+     * @param libs dex解出目录
+     * @param version SHELL_VERSION
+     * @param optimizedDir dex优化输出目录
+     * @param nativeLibDir 本地库目录
+     */
+    public DiskDexLoader(File libs, String version, File optimizedDir, String nativeLibDir) {
+        this(libs, version, optimizedDir, nativeLibDir, null);
+    }
+
+    /**
+     * @param libs dex解出目录
+     * @param version SHELL_VERSION
+     * @param optimizedDir dex优化输出目录
+     * @param nativeLibDir 本地库目录
+     * @param hotDexes 启动所需的dex名称(如classes.dex),packer需将其放在payload最前;为null则全部在主线程解出
+     */
+    public DiskDexLoader(File libs, String version, File optimizedDir, String nativeLibDir, Set<String> hotDexes) {
+        mLibs = libs;
+        mVersion = version;
+        mOptimizedDir = optimizedDir;
+        mNativeLibDir = nativeLibDir;
+        mHotDexes = hotDexes;
+    }
+
+    /**
+     * 校验已解出的dex,必要时重新解压
+     *    记录与apk、SHELL_VERSION及dex均一致时直接加载;apk更新或记录损坏时才计算classes.dex的md5,
+     *    md5一致则只重写记录,否则重新解压
+     */
+    @Override
+    public ClassLoader load(File thisApk, ClassLoader parent) throws IOException {
+        String version = mVersion;
+        File stampFile = new File(mLibs, Stamp.NAME);
+        StartupTrace.begin(StartupTrace.CHECK_STAMP);
+        Stamp stamp = Stamp.read(stampFile);
+        boolean valid = stamp != null && stamp.matchVersion(version) && stamp.matchApk(thisApk) && stamp.matchDexes(mLibs);
+        StartupTrace.end(StartupTrace.CHECK_STAMP);
+        if (valid) {
+            StartupTrace.setPath(StartupTrace.PATH_STAMP);
+            return new DexClassLoader(joinPath(Arrays.asList(stamp.getDexes(mLibs))), mOptimizedDir.getAbsolutePath(), mNativeLibDir, parent);
+        }
+
+        List<File> dexes;
+        File classesDex = new File(mLibs, "classes.dex");
+        File pending = new File(mLibs, PENDING);
+        if (!pending.exists() && FileUtils.exists(classesDex) && matchVersion(classesDex)) {
+            StartupTrace.setPath(StartupTrace.PATH_MD5);
+            dexes = Arrays.asList(FileUtils.list(mLibs, DEX_REGEX));
+        } else if (mHotDexes != null && GatedDexClassLoader.isSupported()) {
+            StartupTrace.setPath(StartupTrace.PATH_HOT);
+            return decodeHotDex(thisApk, parent);
+        } else {
+            StartupTrace.setPath(StartupTrace.PATH_EXTRACT);
+            FileUtils.createFile(pending);
+            dexes = decodeDex(thisApk, mLibs);
+        }
+        stamp = Stamp.create(version, thisApk, dexes);
+        if (stamp.write(stampFile)) {
+            FileUtils.delete(pending);
+        }
+        return new DexClassLoader(joinPath(dexes), mOptimizedDir.getAbsolutePath(), mNativeLibDir, parent);
+    }
+
+    /**
+     * 设置cold dex解出前找不到类时的最长等待时间,见{@link GatedDexClassLoader#setWaitTime(long)}
+     * @param waitMs
+     */
+    public void setColdWaitTime(long waitMs) {
+        mColdWaitMs = waitMs;
+    }
+
+    //拼接dex路径
+    private String joinPath(List<File> dexes) {
+        StringBuffer dexPathList = new StringBuffer();
+        for (File dex : dexes) {
+            dexPathList.append(":").append(dex.getAbsolutePath());
+            System.out.println("loaded " + dex.getName());
+        }
+        return dexPathList.toString();
+    }
+
+    //比对版本
+    private boolean matchVersion(File classDex) {
+        StartupTrace.begin(StartupTrace.MATCH_VERSION);
+        String dexMd5 = FileUtils.md5(classDex);
+        StartupTrace.addRead(classDex.length());
+        StartupTrace.end(StartupTrace.MATCH_VERSION, classDex.length());
+        return dexMd5.equals(mVersion);
+    }
+
+    /**
+     * 从assets/shell.zip解压classes.dex
+     *    payload可定位时各dex在多个线程中同时解密解压;否则单次顺序读取:解密->解压->写入dex。
+     *    都不生成中间文件,各dex先写临时文件,全部完成后重命名;调用前写入{@link #PENDING}标记,写入记录后删除
+     * @param thisApk
+     * @param libs
+     * @return 解出的dex
+     * @throws IOException
+     */
+    private List<File> decodeDex(File thisApk, File libs) throws IOException {
+        List<File> dexes = new ArrayList<File>();
+        List<File> temps = new ArrayList<File>();
+        try {
+            Payload payload = openPayload(thisApk);
+            try {
+                ZipIndex index = payload.openIndex();
+                if (index != null) {
+                    try {
+                        decodeIndexed(index, index.find(DEX_REGEX), dexes, temps);
+                    } finally {
+                        index.close();
+                    }
+                } else {
+                    ZipInputStream zis = new ZipInputStream(payload.openStream());
+                    try {
+                        decodeEntries(zis, null, dexes, temps);
+                    } finally {
+                        zis.close();
+                    }
+                }
+            } finally {
+                payload.close();
+            }
+            if (dexes.isEmpty()) {
+                throw new IOException("no dex in payload.");
+            }
+            commit(dexes, temps);
+            return dexes;
+        } catch (IOException e) {
+            for (File tmp : temps) {
+                FileUtils.delete(tmp);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 主线程解出hot dex并创建ClassLoader,后台线程解出其余dex
+     *    payload可定位时直接按名称选出hot dex,与顺序无关;否则后台线程继续读取同一payload流,需packer把hot dex放在最前。
+     *    后台完成前写入{@link #PENDING}标记,防止进程中途退出后下次启动只加载到部分dex;
+     *    后台完成后追加dex、写入记录并打开等待;失败则只打开等待,下次启动重新解压
+     * @param thisApk
+     * @param parent
+     * @return
+     * @throws IOException
+     */
+    private ClassLoader decodeHotDex(final File thisApk, ClassLoader parent) throws IOException {
+        final File pending = new File(mLibs, PENDING);
+        FileUtils.createFile(pending);
+
+        final List<File> hot = new ArrayList<File>();
+        List<File> hotTemps = new ArrayList<File>();
+        final List<ZipIndex.Entry> coldEntries = new ArrayList<ZipIndex.Entry>();
+        final Payload payload = openPayload(thisApk);
+        final ZipIndex index;
+        final ZipInputStream zis;
+        try {
+            index = payload.openIndex();
+            zis = index == null ? new ZipInputStream(payload.openStream()) : null;
+            try {
+                if (index != null) {
+                    List<ZipIndex.Entry> hotEntries = new ArrayList<ZipIndex.Entry>();
+                    splitDexes(index, hotEntries, coldEntries);
+                    decodeIndexed(index, hotEntries, hot, hotTemps);
+                } else {
+                    //hot dex名称都不在payload中时会读到末尾,即全部在主线程解出
+                    decodeEntries(zis, new HashSet<String>(mHotDexes), hot, hotTemps);
+                }
+                if (hot.isEmpty()) {
+                    throw new IOException("no dex in payload.");
+                }
+                commit(hot, hotTemps);
+            } catch (IOException e) {
+                close(index);
+                close(zis);
+                throw e;
+            }
+        } catch (IOException e) {
+            payload.close();
+            for (File tmp : hotTemps) {
+                FileUtils.delete(tmp);
+            }
+            throw e;
+        }
+
+        final GatedDexClassLoader loader = new GatedDexClassLoader(joinPath(hot), mOptimizedDir.getAbsolutePath(), mNativeLibDir, parent);
+        loader.setWaitTime(mColdWaitMs);
+        new Thread("shell-cold-dex") {
+            @Override
+            public void run() {
+                StartupTrace.begin(StartupTrace.COLD_DEX);
+                List<File> cold = new ArrayList<File>();
+                List<File> coldTemps = new ArrayList<File>();
+                try {
+                    try {
+                        if (index != null) {
+                            decodeIndexed(index, coldEntries, cold, coldTemps);
+                        } else {
+                            decodeEntries(zis, null, cold, coldTemps);
+                        }
+                    } finally {
+                        close(index);
+                        close(zis);
+                        payload.close();
+                    }
+                    commit(cold, coldTemps);
+                    loader.append(cold);
+
+                    List<File> dexes = new ArrayList<File>(hot);
+                    dexes.addAll(cold);
+                    if (Stamp.create(mVersion, thisApk, dexes).write(new File(mLibs, Stamp.NAME))) {
+                        FileUtils.delete(pending);
+                    }
+                    System.out.println("loaded " + cold.size() + " cold dex");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    for (File tmp : coldTemps) {
+                        FileUtils.delete(tmp);
+                    }
+                } finally {
+                    loader.open();
+                    StartupTrace.end(StartupTrace.COLD_DEX, cold.size());
+                    StartupTrace.flush();
+                }
+            }
+        }.start();
+        return loader;
+    }
+
+    /**
+     * 从payload流中解出dex到临时文件
+     * @param zis payload流
+     * @param until 解出其中全部dex后即返回,流停在下一项之前;为null则读到末尾
+     * @param dexes 解出的dex(正式文件名)
+     * @param temps 对应的临时文件
+     * @throws IOException
+     */
+    private void decodeEntries(ZipInputStream zis, Set<String> until, List<File> dexes, List<File> temps) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        ZipEntry entry;
+        while ((until == null || !until.isEmpty()) && (entry = zis.getNextEntry()) != null) {
+            String name = entry.getName();
+            if (!name.matches(DEX_REGEX)) {
+                continue;
+            }
+            File tmp = new File(mLibs, name + ".tmp");
+            temps.add(tmp);
+            StartupTrace.begin(StartupTrace.DECODE_DEX);
+            long written = writeDex(zis, tmp, buffer);
+            StartupTrace.addWritten(written);
+            StartupTrace.end(StartupTrace.DECODE_DEX, written);
+            dexes.add(new File(mLibs, name));
+            if (until != null) {
+                until.remove(name);
+            }
+        }
+    }
+
+    /**
+     * 从payload索引中解出dex到临时文件,各dex在多个线程中同时解密解压
+     *    只在payload以STORED方式保存时使用,现有packer打包的apk不会走到这里,见{@link Payload#openIndex()}
+     * @param index payload索引
+     * @param entries 需解出的dex
+     * @param dexes 解出的dex(正式文件名)
+     * @param temps 对应的临时文件,出错时由调用者删除
+     * @throws IOException
+     */
+    private void decodeIndexed(final ZipIndex index, List<ZipIndex.Entry> entries, List<File> dexes, List<File> temps) throws IOException {
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(entries.size());
+        for (final ZipIndex.Entry entry : entries) {
+            final File tmp = new File(mLibs, entry.getName() + ".tmp");
+            temps.add(tmp);
+            dexes.add(new File(mLibs, entry.getName()));
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (failed.get()) {
+                        return null;
+                    }
+                    StartupTrace.begin(StartupTrace.DECODE_DEX);
+                    try {
+                        InputStream in = index.getInputStream(entry);
+                        try {
+                            long written = writeDex(in, tmp, new byte[64 * 1024]);
+                            StartupTrace.addWritten(written);
+                            StartupTrace.end(StartupTrace.DECODE_DEX, written);
+                        } finally {
+                            in.close();
+                        }
+                    } catch (IOException e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("decode dex failed.", e);
+                }
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+            for (Callable<Void> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("decode dex failed.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("decode dex interrupted.", e);
+        } finally {
+            //出错时其余dex不再开始(不中断进行中的读取,中断会关闭apk的channel),等待全部结束后再由调用者删除临时文件
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //按名称把payload中的dex分为hot dex和其余dex;hot dex名称都不在payload中(如meta-data写错)时全部作为hot dex,与payload流的行为一致
+    private void splitDexes(ZipIndex index, List<ZipIndex.Entry> hot, List<ZipIndex.Entry> cold) {
+        for (ZipIndex.Entry entry : index.find(DEX_REGEX)) {
+            if (mHotDexes.contains(entry.getName())) {
+                hot.add(entry);
+            } else {
+                cold.add(entry);
+            }
+        }
+        if (hot.isEmpty()) {
+            Log.w(TAG, "hot dex " + mHotDexes + " not found in payload, decoding all dex on main thread.");
+            hot.addAll(cold);
+            cold.clear();
+        }
+    }
+
+    private void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //临时文件重命名为正式文件,classes.dex最后重命名(md5校验只看classes.dex)
+    private void commit(List<File> dexes, List<File> temps) throws IOException {
+        StartupTrace.begin(StartupTrace.COMMIT_DEX);
+        int main = -1;
+        for (int i = 0; i < dexes.size(); i++) {
+            if ("classes.dex".equals(dexes.get(i).getName())) {
+                main = i;
+            } else {
+                rename(temps.get(i), dexes.get(i));
+            }
+        }
+        if (main != -1) {
+            rename(temps.get(main), dexes.get(main));
+        }
+        StartupTrace.end(StartupTrace.COMMIT_DEX);
+    }
+
+    private void rename(File tmp, File dex) throws IOException {
+        if (!tmp.renameTo(dex)) {
+            throw new IOException("rename " + dex.getName() + " failed.");
+        }
+    }
+
+    //打开payload并记录耗时
+    private Payload openPayload(File thisApk) throws IOException {
+        StartupTrace.begin(StartupTrace.OPEN_PAYLOAD);
+        Payload payload = Payload.open(thisApk);
+        StartupTrace.end(StartupTrace.OPEN_PAYLOAD);
+        return payload;
+    }
+
+    //写入单个dex并同步到存储,返回写入字节数
+    private long writeDex(InputStream in, File target, byte[] buffer) throws IOException {
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            long total = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                total += len;
+            }
+            out.getFD().sync();
+            return total;
+        } finally {
+            out.close();
+        }
+    }
+}
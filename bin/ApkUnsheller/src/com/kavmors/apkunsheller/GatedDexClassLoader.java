@@ -0,0 +1,159 @@
+package com.kavmors.apkunsheller;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Build;
+import android.util.Log;
+import dalvik.system.DexClassLoader;
+
+/**
+ * 可在创建后追加dex的DexClassLoader
+ *    启动时只包含hot dex,cold dex在后台解出后追加;默认追加完成前找不到的类一直等到cold dex全部解出,
+ *    保证cold dex中的类在解出前被用到也能找到。可用{@link #setWaitTime(long)}限制等待时间,
+ *    但超时按找不到处理,cold dex中的类可能因解出较慢而加载失败,只适用于已确认hot dex完整的应用
+ */
+public class GatedDexClassLoader extends DexClassLoader {
+    public static final long DEFAULT_WAIT_MS = -1;      //一直等到追加完成
+    private static final int API_ADD_DEX_PATH = 24;
+    private static final String TAG = "GatedDexClassLoader";
+
+    private static Method sAddDexPath;          //BaseDexClassLoader.addDexPath(String), API 24+
+    private static Field sPathList;             //BaseDexClassLoader.pathList
+    private static Field sDexElements;          //DexPathList.dexElements
+    private static Method sMakeElements;        //DexPathList.makeDexElements / makePathElements
+    private static boolean sSupported;
+
+    static {
+        try {
+            Class<?> base = Class.forName("dalvik.system.BaseDexClassLoader");
+            if (Build.VERSION.SDK_INT >= API_ADD_DEX_PATH) {
+                sAddDexPath = base.getDeclaredMethod("addDexPath", String.class);
+                sAddDexPath.setAccessible(true);
+            } else {
+                Class<?> pathList = Class.forName("dalvik.system.DexPathList");
+                sPathList = base.getDeclaredField("pathList");
+                sPathList.setAccessible(true);
+                sDexElements = pathList.getDeclaredField("dexElements");
+                sDexElements.setAccessible(true);
+                try {
+                    sMakeElements = pathList.getDeclaredMethod("makeDexElements", ArrayList.class, File.class, ArrayList.class);
+                } catch (NoSuchMethodException e) {
+                    sMakeElements = pathList.getDeclaredMethod("makePathElements", List.class, File.class, List.class);
+                }
+                sMakeElements.setAccessible(true);
+            }
+            sSupported = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            sSupported = false;
+        }
+    }
+
+    private final CountDownLatch mGate = new CountDownLatch(1);
+    private final Object mAppendLock = new Object();   //loadClass可能持有this锁等待,追加不能锁this
+    private volatile boolean mOpened = false;
+    private volatile long mWaitMs = DEFAULT_WAIT_MS;
+    private String mOptimizedDir;
+
+    /**
+     * @return 当前系统是否支持追加dex
+     */
+    public static boolean isSupported() {
+        return sSupported;
+    }
+
+    public GatedDexClassLoader(String dexPath, String optimizedDirectory, String librarySearchPath, ClassLoader parent) {
+        super(dexPath, optimizedDirectory, librarySearchPath, parent);
+        mOptimizedDir = optimizedDirectory;
+    }
+
+    /**
+     * 设置追加完成前找不到类时的最长等待时间
+     * @param waitMs 毫秒;0为不等待,小于0为一直等到追加完成
+     */
+    public void setWaitTime(long waitMs) {
+        mWaitMs = waitMs;
+    }
+
+    /**
+     * 追加dex
+     * @param dexes 需追加的dex文件
+     * @throws IOException
+     */
+    public void append(List<File> dexes) throws IOException {
+        if (dexes.isEmpty()) {
+            return;
+        }
+        synchronized (mAppendLock) {
+            appendLocked(dexes);
+        }
+    }
+
+    private void appendLocked(List<File> dexes) throws IOException {
+        try {
+            if (sAddDexPath != null) {
+                StringBuffer dexPath = new StringBuffer();
+                for (File dex : dexes) {
+                    dexPath.append(File.pathSeparator).append(dex.getAbsolutePath());
+                }
+                sAddDexPath.invoke(this, dexPath.substring(1));
+            } else {
+                Object pathList = sPathList.get(this);
+                Object[] elements = (Object[]) sDexElements.get(pathList);
+                ArrayList<IOException> suppressed = new ArrayList<IOException>();
+                Object[] added = (Object[]) sMakeElements.invoke(null, new ArrayList<File>(dexes), new File(mOptimizedDir), suppressed);
+                if (!suppressed.isEmpty()) {
+                    throw suppressed.get(0);
+                }
+                Object[] combined = (Object[]) Array.newInstance(elements.getClass().getComponentType(), elements.length + added.length);
+                System.arraycopy(elements, 0, combined, 0, elements.length);
+                System.arraycopy(added, 0, combined, elements.length, added.length);
+                sDexElements.set(pathList, combined);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("append dex failed.", e);
+        }
+    }
+
+    /**
+     * 打开等待,之后找不到的类不再等待
+     */
+    public void open() {
+        mOpened = true;
+        mGate.countDown();
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        try {
+            return super.findClass(name);
+        } catch (ClassNotFoundException e) {
+            long waitMs = mWaitMs;
+            if (mOpened || waitMs == 0) {
+                throw e;
+            }
+            try {
+                if (waitMs < 0) {
+                    mGate.await();
+                } else if (!mGate.await(waitMs, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, name + " not found in hot dex, gave up waiting for cold dex after " + waitMs + "ms.");
+                    throw e;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+            return super.findClass(name);
+        }
+    }
+}
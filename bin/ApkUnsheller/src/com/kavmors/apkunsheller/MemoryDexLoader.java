@@ -0,0 +1,100 @@
+package com.kavmors.apkunsheller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 在内存中解密解压payload,通过InMemoryDexClassLoader加载,明文dex不写入存储
+ *    需Android 8.1(API 27)以上;低版本或创建失败时使用备用加载方式,此时明文dex会写入存储,
+ *    会输出警告并记录到{@link StartupTrace}
+ */
+public class MemoryDexLoader implements DexLoadStrategy {
+    private static final String DEX_REGEX = "classes[0-9]*\\.dex";
+    private static final String IN_MEMORY_LOADER = "dalvik.system.InMemoryDexClassLoader";
+    private static final int API_BYTEBUFFER_ARRAY = 27;
+    private static final String TAG = "MemoryDexLoader";
+    private String mNativeLibDir;
+    private DexLoadStrategy mFallback;
+
+    /**
+     * @param nativeLibDir 本地库目录(API 29以上有效)
+     * @param fallback 不支持内存加载时使用的加载方式
+     */
+    public MemoryDexLoader(String nativeLibDir, DexLoadStrategy fallback) {
+        mNativeLibDir = nativeLibDir;
+        mFallback = fallback;
+    }
+
+    @Override
+    public ClassLoader load(File thisApk, ClassLoader parent) throws IOException {
+        if (Build.VERSION.SDK_INT < API_BYTEBUFFER_ARRAY) {
+            return fallback(thisApk, parent, "API " + Build.VERSION.SDK_INT);
+        }
+        StartupTrace.setPath(StartupTrace.PATH_MEMORY);
+        ByteBuffer[] dexes = readDexes(thisApk);
+        try {
+            Class<?> clazz = Class.forName(IN_MEMORY_LOADER);
+            try {
+                Constructor<?> c = clazz.getConstructor(ByteBuffer[].class, String.class, ClassLoader.class);
+                return (ClassLoader) c.newInstance(dexes, mNativeLibDir, parent);
+            } catch (NoSuchMethodException e) {
+                Constructor<?> c = clazz.getConstructor(ByteBuffer[].class, ClassLoader.class);
+                return (ClassLoader) c.newInstance(dexes, parent);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return fallback(thisApk, parent, e.toString());
+        }
+    }
+
+    //使用备用加载方式,明文dex将写入存储
+    private ClassLoader fallback(File thisApk, ClassLoader parent, String reason) throws IOException {
+        Log.w(TAG, "in-memory dex loading unavailable (" + reason + "), falling back to plaintext dex on storage.");
+        StartupTrace.setFallback(StartupTrace.PATH_MEMORY);
+        return mFallback.load(thisApk, parent);
+    }
+
+    //解密解压payload中的各个dex到内存
+    private ByteBuffer[] readDexes(File thisApk) throws IOException {
+        List<ByteBuffer> dexes = new ArrayList<ByteBuffer>();
+        Payload payload = Payload.open(thisApk);
+        try {
+            ZipInputStream zis = new ZipInputStream(payload.openStream());
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    if (!entry.getName().matches(DEX_REGEX)) {
+                        continue;
+                    }
+                    int size = entry.getSize() > 0 ? (int) entry.getSize() : buffer.length;
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+                    int len;
+                    while ((len = zis.read(buffer)) != -1) {
+                        bos.write(buffer, 0, len);
+                    }
+                    dexes.add(ByteBuffer.wrap(bos.toByteArray()));
+                    System.out.println("loaded " + entry.getName() + " (memory)");
+                }
+            } finally {
+                zis.close();
+            }
+        } finally {
+            payload.close();
+        }
+        if (dexes.isEmpty()) {
+            throw new IOException("no dex in payload.");
+        }
+        return dexes.toArray(new ByteBuffer[dexes.size()]);
+    }
+}
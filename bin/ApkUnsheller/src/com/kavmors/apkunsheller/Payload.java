@@ -0,0 +1,115 @@
+package com.kavmors.apkunsheller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import jcommon.util.ChunkCipher;
+import jcommon.util.ZipIndex;
+
+/**
+ * 壳apk中的payload
+ *    只打开一次apk,从classes.dex末尾直接读取密钥和.dex名称,payload边读边解密;
+ *    payload未压缩存放时可按位置随机解密读取
+ */
+public class Payload {
+    private ZipIndex mApk;
+    private ZipIndex.Entry mEntry;
+    private String mSecret;
+    private String mDexName;
+
+    private Payload() {}
+
+    /**
+     * 打开壳apk并定位payload
+     * @param thisApk 壳apk
+     * @return 使用后需调用{@link #close()}
+     * @throws IOException
+     */
+    public static Payload open(File thisApk) throws IOException {
+        Payload payload = new Payload();
+        payload.mApk = new ZipIndex(thisApk);
+        try {
+            //classes.dex末尾提取.dex名称和密钥
+            ZipIndex.Entry thisDex = payload.mApk.getEntry("classes.dex");
+            if (thisDex == null) {
+                throw new IOException("classes.dex not found.");
+            }
+            int trailerLen = Common.SECRET_LEN + Common.DEXNAME_LEN;
+            byte[] trailer = payload.mApk.read(thisDex, thisDex.getSize() - trailerLen, trailerLen);
+            payload.mSecret = new String(trailer, 0, Common.SECRET_LEN);
+            payload.mDexName = new String(trailer, Common.SECRET_LEN, Common.DEXNAME_LEN);
+            System.out.println("--secret=" + payload.mSecret);
+            System.out.println("--dexName=" + payload.mDexName);
+
+            payload.mEntry = payload.mApk.getEntry("assets/" + payload.mDexName + ".dex");
+            if (payload.mEntry == null) {
+                throw new IOException("assets/" + payload.mDexName + ".dex not found.");
+            }
+            return payload;
+        } catch (IOException e) {
+            payload.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 打开解密后的payload(classes.zip)输入流
+     * @return 使用后需关闭
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        StartupTrace.addRead(mEntry.getCompressedSize());
+        return ChunkCipher.decryptStream(mApk.getInputStream(mEntry), mSecret);
+    }
+
+    /**
+     * 打开解密后的payload(classes.zip)索引
+     *    payload在apk中以STORED方式保存时可直接定位:读取时按位置解密,不同dex可在多个线程中同时解密解压;
+     *    以DEFLATED方式保存时无法定位,返回null,只能通过{@link #openStream()}顺序读取。
+     *    注意:现有packer经apktool/aapt重新打包时会压缩.dex资源,payload都是DEFLATED,即目前总是返回null,
+     *    dex只在单线程中解出;packer改为以STORED方式保存payload后多线程解出才会生效
+     * @return 使用后需关闭;不支持定位时为null
+     * @throws IOException
+     */
+    public ZipIndex openIndex() throws IOException {
+        if (mEntry.getMethod() != ZipIndex.STORED) {
+            return null;
+        }
+        StartupTrace.addRead(mEntry.getCompressedSize());
+        return new ZipIndex(ChunkCipher.openChannel(mApk.getChannel(), mApk.getDataOffset(mEntry), mEntry.getCompressedSize(), mSecret));
+    }
+
+    /**
+     * 解密payload写入文件
+     * @param target 目标文件
+     * @throws IOException
+     */
+    public void writeTo(File target) throws IOException {
+        InputStream in = openStream();
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(target);
+            byte[] buffer = new byte[64 * 1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            mApk.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.kavmors.apkunsheller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 解压校验记录
+ *    记录SHELL_VERSION、apk及解出dex的大小和修改时间,正常启动时只比对记录,不计算dex的md5
+ */
+public class Stamp {
+    public static final String NAME = "shell.stamp";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_APK = "apk";
+    private static final String KEY_DEX_COUNT = "dex.count";
+    private static final String KEY_DEX = "dex.";
+
+    private String mVersion;
+    private String mApk;
+    private String[] mDexNames;
+    private String[] mDexes;
+
+    private Stamp() {}
+
+    /**
+     * 根据解压结果生成记录
+     * @param version SHELL_VERSION
+     * @param apk 壳apk
+     * @param dexes 解出的dex
+     * @return
+     */
+    public static Stamp create(String version, File apk, List<File> dexes) {
+        Stamp stamp = new Stamp();
+        stamp.mVersion = version;
+        stamp.mApk = describe(apk);
+        stamp.mDexNames = new String[dexes.size()];
+        stamp.mDexes = new String[dexes.size()];
+        for (int i = 0; i < dexes.size(); i++) {
+            stamp.mDexNames[i] = dexes.get(i).getName();
+            stamp.mDexes[i] = describe(dexes.get(i));
+        }
+        return stamp;
+    }
+
+    /**
+     * 读取记录
+     * @param f 记录文件
+     * @return 文件不存在或内容损坏则返回null
+     */
+    public static Stamp read(File f) {
+        if (!f.isFile()) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            Properties p = new Properties();
+            p.load(fis);
+
+            Stamp stamp = new Stamp();
+            stamp.mVersion = p.getProperty(KEY_VERSION);
+            stamp.mApk = p.getProperty(KEY_APK);
+            int count = Integer.parseInt(p.getProperty(KEY_DEX_COUNT));
+            if (stamp.mVersion == null || stamp.mApk == null || count <= 0) {
+                return null;
+            }
+            stamp.mDexNames = new String[count];
+            stamp.mDexes = new String[count];
+            for (int i = 0; i < count; i++) {
+                String dex = p.getProperty(KEY_DEX + i);
+                int sep = dex == null ? -1 : dex.indexOf(':');
+                if (sep <= 0) {
+                    return null;
+                }
+                stamp.mDexNames[i] = dex.substring(0, sep);
+                stamp.mDexes[i] = dex.substring(sep + 1);
+            }
+            return stamp;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 写入记录(先写临时文件再重命名)
+     * @param f 记录文件
+     * @return 写入成功则为true
+     */
+    public boolean write(File f) {
+        Properties p = new Properties();
+        p.setProperty(KEY_VERSION, mVersion);
+        p.setProperty(KEY_APK, mApk);
+        p.setProperty(KEY_DEX_COUNT, String.valueOf(mDexes.length));
+        for (int i = 0; i < mDexes.length; i++) {
+            p.setProperty(KEY_DEX + i, mDexNames[i] + ":" + mDexes[i]);
+        }
+
+        File tmp = new File(f.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            p.store(fos, null);
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            return tmp.renameTo(f);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 比对SHELL_VERSION
+     * @param version
+     * @return
+     */
+    public boolean matchVersion(String version) {
+        return mVersion.equals(version);
+    }
+
+    /**
+     * 比对apk大小和修改时间(不一致说明apk已更新)
+     * @param apk
+     * @return
+     */
+    public boolean matchApk(File apk) {
+        return mApk.equals(describe(apk));
+    }
+
+    /**
+     * 比对解出的dex是否存在且大小和修改时间未变
+     * @param libs dex所在目录
+     * @return
+     */
+    public boolean matchDexes(File libs) {
+        for (int i = 0; i < mDexes.length; i++) {
+            if (!mDexes[i].equals(describe(new File(libs, mDexNames[i])))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param libs dex所在目录
+     * @return 记录中的dex文件(按解出顺序)
+     */
+    public File[] getDexes(File libs) {
+        File[] dexes = new File[mDexNames.length];
+        for (int i = 0; i < dexes.length; i++) {
+            dexes[i] = new File(libs, mDexNames[i]);
+        }
+        return dexes;
+    }
+
+    //文件大小:修改时间
+    private static String describe(File f) {
+        return f.length() + ":" + f.lastModified();
+    }
+}
@@ -0,0 +1,218 @@
+package com.kavmors.apkunsheller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import android.util.Log;
+
+/**
+ * 启动耗时记录
+ *    各阶段的开始/结束写入固定大小的环形缓冲区,记录时不分配对象;启动结束后按meta-data({@link Common#TRACE})
+ *    输出为文本文件和/或logcat摘要。文件位置由调用者决定,见Unsheller:
+ *    通常为/sdcard/Android/data/<包名>/files/shell.trace,可直接adb pull
+ */
+public class StartupTrace {
+    private static final String TAG = "ShellTrace";
+
+    public static final int ATTACH = 0;             //attachBaseContext整体
+    public static final int METADATA = 1;           //读取meta-data
+    public static final int RESET_CLASSLOADER = 2;  //注入ClassLoader
+    public static final int LOAD_DEX = 3;           //DexLoadStrategy.load
+    public static final int CHECK_STAMP = 4;        //读取并比对解压记录
+    public static final int MATCH_VERSION = 5;      //计算classes.dex的md5
+    public static final int OPEN_PAYLOAD = 6;       //打开apk并定位payload
+    public static final int DECODE_DEX = 7;         //解密解压单个dex,结束参数为写入字节数
+    public static final int COMMIT_DEX = 8;         //临时文件重命名
+    public static final int COLD_DEX = 9;           //后台解出cold dex,结束参数为dex个数
+    public static final int INVOKE_MAIN = 10;       //替换并创建原Application
+    public static final int MAIN_ONCREATE = 11;     //原Application.onCreate
+    private static final String[] PHASES = {
+        "attach", "metadata", "resetClassLoader", "loadDex", "checkStamp", "matchVersion",
+        "openPayload", "decodeDex", "commitDex", "coldDex", "invokeMain", "mainOnCreate"
+    };
+
+    public static final int PATH_NONE = 0;
+    public static final int PATH_STAMP = 1;         //记录一致,直接加载
+    public static final int PATH_MD5 = 2;           //记录失效,md5一致,只重写记录
+    public static final int PATH_EXTRACT = 3;       //重新解压
+    public static final int PATH_HOT = 4;           //重新解压,cold dex在后台解出
+    public static final int PATH_MEMORY = 5;        //内存加载
+    private static final String[] PATHS = {"none", "stamp", "md5", "extract", "hot", "memory"};
+
+    private static final int CAPACITY = 128;
+    private static final int END = 1;
+    private static final int[] sEvents = new int[CAPACITY];     //阶段<<1 | 开始/结束
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final long[] sArgs = new long[CAPACITY];
+    private static final long[] sThreads = new long[CAPACITY];
+    private static final long sStart = System.nanoTime();
+    private static int sCount = 0;
+    private static int sPath = PATH_NONE;
+    private static int sFallback = PATH_NONE;
+    private static long sRead = 0;
+    private static long sWritten = 0;
+
+    private static File sOutput;
+    private static boolean sLog;
+
+    /**
+     * 阶段开始
+     * @param phase
+     */
+    public static void begin(int phase) {
+        record(phase << 1, 0);
+    }
+
+    /**
+     * 阶段结束
+     * @param phase
+     */
+    public static void end(int phase) {
+        record(phase << 1 | END, 0);
+    }
+
+    /**
+     * 阶段结束
+     * @param phase
+     * @param arg 附加数值(如字节数)
+     */
+    public static void end(int phase, long arg) {
+        record(phase << 1 | END, arg);
+    }
+
+    /**
+     * 记录本次启动的dex加载路径
+     * @param path PATH_*
+     */
+    public static synchronized void setPath(int path) {
+        sPath = path;
+    }
+
+    /**
+     * 记录无法使用而改用备用方式的加载路径
+     * @param path PATH_*
+     */
+    public static synchronized void setFallback(int path) {
+        sFallback = path;
+    }
+
+    /**
+     * 累计从存储读取的字节数
+     * @param bytes
+     */
+    public static synchronized void addRead(long bytes) {
+        sRead += bytes;
+    }
+
+    /**
+     * 累计写入存储的字节数
+     * @param bytes
+     */
+    public static synchronized void addWritten(long bytes) {
+        sWritten += bytes;
+    }
+
+    private static synchronized void record(int event, long arg) {
+        int i = sCount % CAPACITY;
+        sEvents[i] = event;
+        sTimes[i] = System.nanoTime();
+        sArgs[i] = arg;
+        sThreads[i] = Thread.currentThread().getId();
+        sCount++;
+    }
+
+    /**
+     * 设置输出方式,未设置则{@link #flush()}不输出
+     * @param output 记录文件,为null则不写文件
+     * @param log 是否输出logcat摘要
+     */
+    public static synchronized void setOutput(File output, boolean log) {
+        sOutput = output;
+        sLog = log;
+    }
+
+    /**
+     * 按设置输出当前记录;后台阶段结束后可再次调用,文件会被覆盖
+     */
+    public static synchronized void flush() {
+        if (sOutput != null) {
+            write(sOutput);
+        }
+        if (sLog) {
+            Log.i(TAG, summary());
+        }
+    }
+
+    /**
+     * 写入记录文件
+     *    首行为path/fallback/read/written/dropped,之后每行一个事件:相对微秒 线程id B|E 阶段 [参数]
+     * @param f
+     * @return 写入成功则为true
+     */
+    public static synchronized boolean write(File f) {
+        Writer w = null;
+        try {
+            w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+            int first = Math.max(0, sCount - CAPACITY);
+            w.write(header() + " dropped=" + first + "\n");
+            for (int n = first; n < sCount; n++) {
+                int i = n % CAPACITY;
+                boolean end = (sEvents[i] & END) != 0;
+                w.write((sTimes[i] - sStart) / 1000 + " " + sThreads[i] + (end ? " E " : " B ") + PHASES[sEvents[i] >> 1]);
+                w.write(end && sArgs[i] != 0 ? " " + sArgs[i] + "\n" : "\n");
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 各阶段累计耗时摘要(毫秒)
+     */
+    public static synchronized String summary() {
+        long[] total = new long[PHASES.length];
+        int first = Math.max(0, sCount - CAPACITY);
+        for (int n = first; n < sCount; n++) {
+            int i = n % CAPACITY;
+            if ((sEvents[i] & END) == 0) {
+                continue;
+            }
+            //同一阶段可能在多个线程中同时进行,按线程找对应的开始
+            for (int m = n - 1; m >= first; m--) {
+                int j = m % CAPACITY;
+                if (sEvents[j] == (sEvents[i] & ~END) && sThreads[j] == sThreads[i]) {
+                    total[sEvents[i] >> 1] += sTimes[i] - sTimes[j];
+                    break;
+                }
+            }
+        }
+        StringBuffer sb = new StringBuffer(header());
+        for (int p = 0; p < PHASES.length; p++) {
+            if (total[p] > 0) {
+                sb.append(' ').append(PHASES[p]).append('=').append(total[p] / 1000 / 1000.0).append("ms");
+            }
+        }
+        return sb.toString();
+    }
+
+    //path/fallback/read/written
+    private static String header() {
+        String fallback = sFallback == PATH_NONE ? "" : " fallback=" + PATHS[sFallback];
+        return "path=" + PATHS[sPath] + fallback + " read=" + sRead + " written=" + sWritten;
+    }
+
+    private StartupTrace() {}
+}
@@ -5,9 +5,12 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import android.app.Application;
 import android.app.Instrumentation;
@@ -15,10 +18,8 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
-import dalvik.system.DexClassLoader;
 import jcommon.util.FileUtils;
 import jcommon.util.RefInvoke;
-import jcommon.util.ZipUtils;
 
 /**
  * ShellerApplication事务实现类,方便混淆
@@ -38,22 +39,23 @@ public class Unsheller {
     }
 
     public void attachBaseContext(Context base) {
+        StartupTrace.begin(StartupTrace.ATTACH);
         try {
             init();
+            StartupTrace.begin(StartupTrace.METADATA);
             mMetadata = mApp.getPackageManager().getApplicationInfo(mApp.getPackageName(), PackageManager.GET_META_DATA).metaData;
+            StartupTrace.end(StartupTrace.METADATA);
             if (mMetadata == null || !mMetadata.containsKey(Common.VERSION)) {
                 throw new RuntimeException("No meta data.");
             }
+            initTrace();
 
-            File classesDex = new File(LIBS, "classes.dex");
-            if (!FileUtils.exists(classesDex) || !matchVersion(classesDex)) {
-                decodeDex(getThisApk(), LIBS);
-            }
-
-            resetClassLoader(LIBS);
+            resetClassLoader(createLoadStrategy());
         } catch (Exception e) {
             e.printStackTrace();
             exception();
+        } finally {
+            StartupTrace.end(StartupTrace.ATTACH);
         }
     }
 
@@ -62,84 +64,100 @@ public class Unsheller {
         try {
             if (mMetadata.containsKey(Common.MAIN_APPLICATION)) {
                 main = mMetadata.getString(Common.MAIN_APPLICATION);
-                invokeMainApplication(main).onCreate();
+                StartupTrace.begin(StartupTrace.INVOKE_MAIN);
+                Application app = invokeMainApplication(main);
+                StartupTrace.end(StartupTrace.INVOKE_MAIN);
+                StartupTrace.begin(StartupTrace.MAIN_ONCREATE);
+                app.onCreate();
+                StartupTrace.end(StartupTrace.MAIN_ONCREATE);
             }
         } catch (Exception e) {
             e.printStackTrace();
             exception();
+        } finally {
+            StartupTrace.flush();
         }
     }
 
-    //获取壳apk
-    private File getThisApk() {
-        return new File(mApp.getApplicationInfo().sourceDir);
-    }
-
-    //比对版本
-    private boolean matchVersion(File classDex) {
-        String dexMd5 = FileUtils.md5(classDex);
-        String sourceMd5 = mMetadata.getString(Common.VERSION);
-        return dexMd5.equals(sourceMd5);
+    //根据meta-data设置启动记录输出:file写入shell.trace,log输出logcat摘要,可用逗号同时指定
+    //  shell.trace写在外部存储的应用目录(Android/data/<包名>/files,API 19起无需权限),非debuggable包也可adb pull;
+    //  外部存储不可用时写入app_libs,只能在debuggable包中通过run-as读取
+    private void initTrace() {
+        String trace = mMetadata.getString(Common.TRACE);
+        if (trace == null) {
+            return;
+        }
+        boolean file = false;
+        boolean log = false;
+        for (String name : trace.split(",")) {
+            file |= Common.TRACE_FILE.equals(name.trim());
+            log |= Common.TRACE_LOG.equals(name.trim());
+        }
+        File dir = file ? mApp.getExternalFilesDir(null) : null;
+        if (file && dir == null) {
+            dir = LIBS;
+        }
+        StartupTrace.setOutput(file ? new File(dir, "shell.trace") : null, log);
     }
 
     /**
-     * 从assets/shell.zip解压classes.dex
-     * @param thisApk
-     * @param libs
-     * @throws IOException
+     * 根据meta-data选择dex加载方式
+     * @return
      */
-    private void decodeDex(File thisApk, File libs) throws IOException {
-        File thisDex = new File(libs, "thisApk.dex");
-        File classesEncrypt = new File(libs, "classes_encrypt.dex");
-        File classesZip = new File(libs, "classes.zip");
-
-        //apk提取classes.dex
-        ZipUtils.extractFile(thisApk, "classes.dex", thisDex);
-
-        //classes.dex提取.dex名称和密钥
-        long len = thisDex.length();
-        String dexName = new String(FileUtils.read(thisDex, len-Common.DEXNAME_LEN, Common.DEXNAME_LEN));
-        String secret = new String(FileUtils.read(thisDex, len-Common.DEXNAME_LEN-Common.SECRET_LEN, Common.SECRET_LEN));
-        System.out.println("--secret=" + secret);
-        System.out.println("--dexName=" + dexName);
-
-        //提取classes.dex+解密
-        ZipUtils.extractFile(thisApk, "assets/" + dexName + ".dex", classesEncrypt);
-//        FileUtils.decrypt(classesEncrypt, classesZip, secret);
-        FileUtils.copy(classesEncrypt, classesZip, true);
-
-        //解压classes.zip
-        ZipUtils.unzip(classesZip, libs);
-
-        //删临时文件
-        FileUtils.delete(thisApk);
-        FileUtils.delete(thisDex);
-        FileUtils.delete(classesEncrypt);
-        FileUtils.delete(classesZip);
-
-//        extractNativeSo(sourceApk);
+    private DexLoadStrategy createLoadStrategy() {
+        String version = mMetadata.getString(Common.VERSION);
+        String nativeLib = new File(FileUtils.getParent(LIBS), "lib").getAbsolutePath();
+        DiskDexLoader disk = new DiskDexLoader(LIBS, version, mApp.getCacheDir(), nativeLib, getHotDexes());
+        if (mMetadata.containsKey(Common.COLD_WAIT)) {
+            disk.setColdWaitTime(mMetadata.getInt(Common.COLD_WAIT));
+        }
+        String name = mMetadata.getString(Common.DEX_LOADER);
+        if (Common.DEX_LOADER_MEMORY.equals(name)) {
+            return new MemoryDexLoader(nativeLib, disk);
+        } else if (Common.DEX_LOADER_ZIP.equals(name)) {
+            return new ZipDexLoader(LIBS, version, mApp.getCacheDir(), nativeLib, disk);
+        } else {
+            return disk;
+        }
     }
 
+    //启动所需的dex名称(逗号分隔),未指定则为null
+    private Set<String> getHotDexes() {
+        String hot = mMetadata.getString(Common.HOT_DEX);
+        if (hot == null || hot.trim().length() == 0) {
+            return null;
+        }
+        Set<String> names = new HashSet<String>();
+        for (String name : hot.split(",")) {
+            if (name.trim().length() > 0) {
+                names.add(name.trim());
+            }
+        }
+        return names.isEmpty() ? null : names;
+    }
+
+    //获取壳apk
+    private File getThisApk() {
+        return new File(mApp.getApplicationInfo().sourceDir);
+    }
 
     //注入ClassLoader
     // ActivityThread.currentActivityThread().mPackages.get(packagename).get().mClassLoader = dexloader;
-    private void resetClassLoader(File libs) {
-        File nativeLib = new File(FileUtils.getParent(LIBS), "lib");
+    private void resetClassLoader(DexLoadStrategy strategy) throws IOException {
+        StartupTrace.begin(StartupTrace.RESET_CLASSLOADER);
         String classActivityThread = "android.app.ActivityThread";
         String classLoadedApk = "android.app.LoadedApk";
-        DexClassLoader loader;
 
         Object activityThread = RefInvoke.invokeStaticMethod(classActivityThread, "currentActivityThread", new Class[]{}, new Object[]{});
         Map<?,?> mPackage = (Map<?,?>)RefInvoke.getField(activityThread, classActivityThread, "mPackages");
         WeakReference<?> wr = (WeakReference<?>) mPackage.get(mApp.getPackageName());
 
-        StringBuffer dexPathList = new StringBuffer();
-        for (File dex : FileUtils.list(libs, "classes[0-9]*\\.dex")) {
-            dexPathList.append(":").append(dex.getAbsolutePath());
-            System.out.println("loaded " + dex.getName());
-        }
-        loader = new DexClassLoader(dexPathList.toString(), mApp.getCacheDir().getAbsolutePath(), nativeLib.getAbsolutePath(), (ClassLoader) RefInvoke.getField(wr.get(), "android.app.LoadedApk", "mClassLoader"));
+        ClassLoader parent = (ClassLoader) RefInvoke.getField(wr.get(), classLoadedApk, "mClassLoader");
+        StartupTrace.begin(StartupTrace.LOAD_DEX);
+        ClassLoader loader = strategy.load(getThisApk(), parent);
+        StartupTrace.end(StartupTrace.LOAD_DEX);
         RefInvoke.setField(wr.get(), classLoadedApk, "mClassLoader", loader);
+        StartupTrace.end(StartupTrace.RESET_CLASSLOADER);
     }
 
     //执行Application
@@ -169,11 +187,22 @@ public class Unsheller {
         RefInvoke.setField(currentActivityThread, classActivityThread, "mInitialApplication", makeApplication);
 
         //currentActivityThread.mProviderMap
+        //每个provider都要读写,循环前取得Field
         Map<?,?> mProviderMap = (Map<?,?>) RefInvoke.getField(currentActivityThread, classActivityThread, "mProviderMap");
-        for (Entry<?, ?> entry : mProviderMap.entrySet()) {
-            Object providerClientRecord = entry.getValue();
-            Object mLocalProvider = RefInvoke.getField(providerClientRecord, classActivityThread+"$ProviderClientRecord", "mLocalProvider");
-            RefInvoke.setField(mLocalProvider, "android.content.ContentProvider", "mContext", makeApplication);
+        Field fLocalProvider = RefInvoke.findField(RefInvoke.forName(classActivityThread+"$ProviderClientRecord"), "mLocalProvider");
+        Field fContext = RefInvoke.findField(RefInvoke.forName("android.content.ContentProvider"), "mContext");
+        if (fLocalProvider != null && fContext != null) {
+            try {
+                for (Entry<?, ?> entry : mProviderMap.entrySet()) {
+                    Object providerClientRecord = entry.getValue();
+                    Object mLocalProvider = fLocalProvider.get(providerClientRecord);
+                    if (mLocalProvider != null) {
+                        fContext.set(mLocalProvider, makeApplication);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
         }
         return makeApplication;
     }
@@ -0,0 +1,75 @@
+package com.kavmors.apkunsheller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.os.Build;
+import dalvik.system.DexClassLoader;
+import jcommon.util.FileUtils;
+
+/**
+ * 直接以解密后的payload zip包作为dex路径加载,不解压出各个dex
+ *    (zip包中的多个classesN.dex需ART支持,即Android 5.0以上;Dalvik只加载classes.dex,低版本使用备用加载方式)
+ */
+public class ZipDexLoader implements DexLoadStrategy {
+    private static final String PAYLOAD_NAME = "payload.zip";
+    private static final String STAMP_NAME = "payload.stamp";
+    private static final int API_ART = 21;
+    private File mLibs;
+    private String mVersion;
+    private File mOptimizedDir;
+    private String mNativeLibDir;
+    private DexLoadStrategy mFallback;
+
+    /**
+     * @param libs payload存放目录
+     * @param version SHELL_VERSION
+     * @param optimizedDir dex优化输出目录
+     * @param nativeLibDir 本地库目录
+     * @param fallback Android 5.0以下使用的加载方式
+     */
+    public ZipDexLoader(File libs, String version, File optimizedDir, String nativeLibDir, DexLoadStrategy fallback) {
+        mLibs = libs;
+        mVersion = version;
+        mOptimizedDir = optimizedDir;
+        mNativeLibDir = nativeLibDir;
+        mFallback = fallback;
+    }
+
+    @Override
+    public ClassLoader load(File thisApk, ClassLoader parent) throws IOException {
+        if (Build.VERSION.SDK_INT < API_ART) {
+            return mFallback.load(thisApk, parent);
+        }
+        File payloadZip = new File(mLibs, PAYLOAD_NAME);
+        File stampFile = new File(mLibs, STAMP_NAME);
+        Stamp stamp = Stamp.read(stampFile);
+        if (stamp == null || !stamp.matchVersion(mVersion) || !stamp.matchApk(thisApk) || !stamp.matchDexes(mLibs)) {
+            StartupTrace.setPath(StartupTrace.PATH_EXTRACT);
+            File tmp = new File(mLibs, PAYLOAD_NAME + ".tmp");
+            Payload payload = Payload.open(thisApk);
+            try {
+                payload.writeTo(tmp);
+            } catch (IOException e) {
+                //不留下不完整的明文payload
+                FileUtils.delete(tmp);
+                throw e;
+            } finally {
+                payload.close();
+            }
+            FileUtils.delete(payloadZip);
+            if (!tmp.renameTo(payloadZip)) {
+                FileUtils.delete(tmp);
+                throw new IOException("rename " + PAYLOAD_NAME + " failed.");
+            }
+            stamp = Stamp.create(mVersion, thisApk, Arrays.asList(payloadZip));
+            stamp.write(stampFile);
+            StartupTrace.addWritten(payloadZip.length());
+        } else {
+            StartupTrace.setPath(StartupTrace.PATH_STAMP);
+        }
+        System.out.println("loaded " + PAYLOAD_NAME);
+        return new DexClassLoader(payloadZip.getAbsolutePath(), mOptimizedDir.getAbsolutePath(), mNativeLibDir, parent);
+    }
+}
@@ -0,0 +1,576 @@
+package jcommon.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 分块并行加解密
+ *    使用AES/CTR模式,密文与明文长度一致(另加{@link #HEADER_LEN}字节文件头),
+ *    各块可独立定位加解密,大文件按块分配到多个线程处理;运行时可通过{@link #openChannel}按位置解密,
+ *    不需要先解密整个文件
+ *
+ * 文件头格式(大端):
+ *    magic(4) | version(2) | reserved(2) | chunkSize(4) | length(8) | nonce(12)
+ */
+public class ChunkCipher {
+    public static final int VERSION = 1;
+    public static final int HEADER_LEN = 32;
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private static final byte[] MAGIC = {'J', 'C', 'C', 'E'};
+    private static final int NONCE_LEN = 12;
+    private static final int BLOCK_LEN = 16;
+
+    /**
+     * 加密文件
+     * @param source 源文件对象
+     * @param destination 目标文件对象
+     * @param key 加密密钥
+     * @return 加密成功则为true
+     */
+    public static boolean encrypt(File source, File destination, String key) {
+        RandomAccessFile in = null;
+        RandomAccessFile out = null;
+        try {
+            checkSame(source, destination);
+            byte[] nonce = new byte[NONCE_LEN];
+            new SecureRandom().nextBytes(nonce);
+
+            in = new RandomAccessFile(source, "r");
+            long length = in.length();
+            if (length >= (long) BLOCK_LEN << 32) {
+                throw new IOException("file too large to encrypt.");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+            header.put(MAGIC);
+            header.putShort((short) VERSION);
+            header.putShort((short) 0);
+            header.putInt(DEFAULT_CHUNK_SIZE);
+            header.putLong(length);
+            header.put(nonce);
+            header.flip();
+
+            out = open(destination, HEADER_LEN + length);
+            writeFully(out.getChannel(), header, 0);
+            process(in.getChannel(), 0, out.getChannel(), HEADER_LEN, length, deriveKey(key), nonce, DEFAULT_CHUNK_SIZE);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    /**
+     * 解密文件
+     * @param source 源文件对象
+     * @param destination 目标文件对象
+     * @param key 解密密钥
+     * @return 解密成功则为true
+     */
+    public static boolean decrypt(File source, File destination, String key) {
+        RandomAccessFile in = null;
+        RandomAccessFile out = null;
+        try {
+            checkSame(source, destination);
+            in = new RandomAccessFile(source, "r");
+            ByteBuffer header = readHeader(in.getChannel());
+            int chunkSize = header.getInt(8);
+            long length = header.getLong(12);
+            byte[] nonce = new byte[NONCE_LEN];
+            header.position(20);
+            header.get(nonce);
+            if (in.length() != HEADER_LEN + length) {
+                throw new IOException("encrypted file is truncated.");
+            }
+
+            out = open(destination, length);
+            process(in.getChannel(), HEADER_LEN, out.getChannel(), 0, length, deriveKey(key), nonce, chunkSize);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    /**
+     * 打开解密输入流
+     *    按顺序解密,用于不需要落盘的流式读取;输入不是本类加密的数据时原样返回
+     * @param in 输入流(加密数据或明文)
+     * @param key 解密密钥
+     * @return 明文输入流
+     * @throws IOException
+     */
+    public static InputStream decryptStream(InputStream in, String key) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, HEADER_LEN);
+        }
+        in.mark(HEADER_LEN);
+        byte[] b = new byte[HEADER_LEN];
+        int off = 0;
+        while (off < HEADER_LEN) {
+            int n = in.read(b, off, HEADER_LEN - off);
+            if (n == -1) {
+                break;
+            }
+            off += n;
+        }
+        ByteBuffer header = ByteBuffer.wrap(b);
+        try {
+            if (off < HEADER_LEN) {
+                throw new IOException("not an encrypted file.");
+            }
+            checkHeader(header);
+        } catch (IOException e) {
+            in.reset();
+            return in;
+        }
+
+        byte[] nonce = new byte[NONCE_LEN];
+        header.position(20);
+        header.get(nonce);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, deriveKey(key), new IvParameterSpec(counterBlock(nonce, 0)));
+            return new CipherInputStream(in, cipher);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("cipher init failed.", e);
+        }
+    }
+
+    /**
+     * 打开解密后的只读定位视图
+     *    任意位置可直接解密读取(CTR计数块由位置算出),可多线程同时读取不同位置;
+     *    数据不是本类加密的时原样返回该区间的视图
+     * @param source 包含加密数据的channel,视图关闭时不会关闭
+     * @param offset 加密数据(文件头)在source中的位置
+     * @param length 加密数据长度(含文件头)
+     * @param key 解密密钥
+     * @return 明文视图
+     * @throws IOException
+     */
+    public static FileChannel openChannel(FileChannel source, long offset, long length, String key) throws IOException {
+        if (length >= HEADER_LEN) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+            readFully(source, header, offset);
+            header.flip();
+            try {
+                checkHeader(header);
+            } catch (IOException e) {
+                return new RangeChannel(source, offset, length, null, null);
+            }
+            long plainLength = header.getLong(12);
+            if (HEADER_LEN + plainLength > length) {
+                throw new IOException("encrypted data is truncated.");
+            }
+            byte[] nonce = new byte[NONCE_LEN];
+            header.position(20);
+            header.get(nonce);
+            try {
+                return new RangeChannel(source, offset + HEADER_LEN, plainLength, deriveKey(key), nonce);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("cipher init failed.", e);
+            }
+        }
+        return new RangeChannel(source, offset, length, null, null);
+    }
+
+    /**
+     * 判断文件是否由本类加密
+     * @param f 文件对象
+     * @return 文件头匹配则为true
+     */
+    public static boolean isEncrypted(File f) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(f, "r");
+            readHeader(in.getChannel());
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            close(in);
+        }
+    }
+
+    //读取并校验文件头
+    private static ByteBuffer readHeader(FileChannel ch) throws IOException {
+        if (ch.size() < HEADER_LEN) {
+            throw new IOException("not an encrypted file.");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+        readFully(ch, header, 0);
+        header.flip();
+        checkHeader(header);
+        return header;
+    }
+
+    //校验文件头
+    private static void checkHeader(ByteBuffer header) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                throw new IOException("not an encrypted file.");
+            }
+        }
+        int version = header.getShort(4);
+        if (version != VERSION) {
+            throw new IOException("unsupported cipher version: " + version);
+        }
+        int chunkSize = header.getInt(8);
+        if (chunkSize <= 0 || chunkSize % BLOCK_LEN != 0) {
+            throw new IOException("bad chunk size: " + chunkSize);
+        }
+    }
+
+    //按块分配到线程池加解密(CTR模式下加密与解密为同一运算)
+    private static void process(final FileChannel in, final long inOffset, final FileChannel out, final long outOffset,
+            final long length, final SecretKeySpec key, final byte[] nonce, final int chunkSize) throws Exception {
+        final long chunks = (length + chunkSize - 1) / chunkSize;
+        final int threads = (int) Math.max(1, Math.min(chunks, Runtime.getRuntime().availableProcessors()));
+        if (threads == 1) {
+            processChunks(in, inOffset, out, outOffset, length, key, nonce, chunkSize, 0, 1);
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+            for (int i = 0; i < threads; i++) {
+                final int index = i;
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        processChunks(in, inOffset, out, outOffset, length, key, nonce, chunkSize, index, threads);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("cipher failed.", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //处理第index, index+step, index+2*step...块,每个线程复用一个Cipher和一对直接缓冲区
+    private static void processChunks(FileChannel in, long inOffset, FileChannel out, long outOffset, long length,
+            SecretKeySpec key, byte[] nonce, int chunkSize, int index, int step) throws IOException, GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        ByteBuffer src = ByteBuffer.allocateDirect(chunkSize);
+        ByteBuffer dst = ByteBuffer.allocateDirect(chunkSize);
+        for (long chunk = index; chunk * chunkSize < length; chunk += step) {
+            long pos = chunk * chunkSize;
+            int len = (int) Math.min(chunkSize, length - pos);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counterBlock(nonce, pos / BLOCK_LEN)));
+
+            src.clear();
+            src.limit(len);
+            readFully(in, src, inOffset + pos);
+            src.flip();
+            dst.clear();
+            cipher.doFinal(src, dst);
+            dst.flip();
+            writeFully(out, dst, outOffset + pos);
+        }
+    }
+
+    //CTR计数块: nonce(12) | 块序号(4)
+    private static byte[] counterBlock(byte[] nonce, long block) {
+        byte[] iv = new byte[BLOCK_LEN];
+        System.arraycopy(nonce, 0, iv, 0, NONCE_LEN);
+        iv[12] = (byte) (block >>> 24);
+        iv[13] = (byte) (block >>> 16);
+        iv[14] = (byte) (block >>> 8);
+        iv[15] = (byte) block;
+        return iv;
+    }
+
+    private static SecretKeySpec deriveKey(String key) throws GeneralSecurityException, IOException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+        return new SecretKeySpec(digest, 0, 16, "AES");
+    }
+
+    //创建目标文件并预分配大小
+    private static RandomAccessFile open(File f, long length) throws IOException {
+        FileUtils.delete(f);
+        FileUtils.createFile(f);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(length);
+        return raf;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("unexpected end of file.");
+            }
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+    }
+
+    private static void checkSame(File source, File destination) throws IOException {
+        if (source.equals(destination)) {
+            throw new IOException("Source is the same as destination");
+        }
+    }
+
+    private static void close(RandomAccessFile f) {
+        if (f != null) {
+            try {
+                f.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * source中一段数据的只读视图,设置了密钥时按位置解密
+     *    只支持读取,每个线程复用各自的Cipher和直接缓冲区,解密结果直接写入目标缓冲区
+     */
+    private static class RangeChannel extends FileChannel {
+        private static final int MAX_READ = DEFAULT_CHUNK_SIZE;
+
+        private final FileChannel mSource;
+        private final long mOffset;
+        private final long mLength;
+        private final SecretKeySpec mKey;
+        private final byte[] mNonce;
+        private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>();
+        private long mPosition = 0;
+
+        RangeChannel(FileChannel source, long offset, long length, SecretKeySpec key, byte[] nonce) {
+            mSource = source;
+            mOffset = offset;
+            mLength = length;
+            mKey = key;
+            mNonce = nonce;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= mLength) {
+                return -1;
+            }
+            int len = (int) Math.min(Math.min(dst.remaining(), MAX_READ), mLength - position);
+            if (len == 0) {
+                return 0;
+            }
+            if (mKey == null) {
+                int limit = dst.limit();
+                dst.limit(dst.position() + len);
+                try {
+                    readFully(mSource, dst, mOffset + position);
+                } finally {
+                    dst.limit(limit);
+                }
+                return len;
+            }
+            try {
+                //CTR从块边界开始,多读前面不足一块的字节,解密到skip中丢弃
+                Scratch scratch = scratch();
+                int skip = (int) (position % BLOCK_LEN);
+                ByteBuffer src = scratch.src;
+                src.clear();
+                src.limit(skip + len);
+                readFully(mSource, src, mOffset + position - skip);
+                src.flip();
+                scratch.cipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(counterBlock(mNonce, (position - skip) / BLOCK_LEN)));
+                if (skip > 0) {
+                    src.limit(skip);
+                    scratch.skip.clear();
+                    scratch.cipher.update(src, scratch.skip);
+                    src.limit(skip + len);
+                }
+                scratch.cipher.doFinal(src, dst);
+                return len;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("decrypt failed.", e);
+            }
+        }
+
+        private Scratch scratch() throws GeneralSecurityException {
+            Scratch scratch = mScratch.get();
+            if (scratch == null) {
+                scratch = new Scratch();
+                mScratch.set(scratch);
+            }
+            return scratch;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            int n = read(dst, mPosition);
+            if (n > 0) {
+                mPosition += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int n = read(dsts[i]);
+                if (n < 0) {
+                    return total == 0 ? -1 : total;
+                }
+                total += n;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized long position() {
+            return mPosition;
+        }
+
+        @Override
+        public synchronized FileChannel position(long newPosition) {
+            mPosition = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return mLength;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long end = Math.min(mLength, position + count);
+            if (position >= end) {
+                return 0;
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(MAX_READ, end - position));
+            long pos = position;
+            while (pos < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - pos));
+                int n = read(buf, pos);
+                if (n <= 0) {
+                    break;
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    int written = target.write(buf);
+                    if (written <= 0) {
+                        //非阻塞目标已满,返回实际写入的字节数
+                        return pos + buf.position() - position;
+                    }
+                }
+                pos += n;
+            }
+            return pos - position;
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            //source由调用者关闭
+        }
+
+        //单个线程的Cipher和缓冲区
+        private static class Scratch {
+            final Cipher cipher;
+            final ByteBuffer src = ByteBuffer.allocateDirect(MAX_READ + BLOCK_LEN);
+            final ByteBuffer skip = ByteBuffer.allocateDirect(BLOCK_LEN);
+
+            Scratch() throws GeneralSecurityException {
+                cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            }
+        }
+    }
+
+    private ChunkCipher() {}
+}
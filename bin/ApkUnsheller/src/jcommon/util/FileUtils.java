@@ -7,20 +7,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.zip.Checksum;
 
 public class FileUtils {
     public static final int TYPE_NULL = 0;
@@ -34,6 +27,24 @@ public class FileUtils {
     public static final char UNIT_GB = 'G';
     public static final char UNIT_TB = 'T';
 
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+    private static final long MAP_THRESHOLD = 8 * 1024 * 1024;
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+    //每个线程复用的读取缓冲区
+    private static final ThreadLocal<ByteBuffer> DIGEST_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
+        }
+    };
+    private static final ThreadLocal<byte[]> DIGEST_CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DIGEST_BUFFER_SIZE];
+        }
+    };
+
     /**
     * 判断文件是否存在
     * @param f 文件对象
@@ -497,60 +508,59 @@ public class FileUtils {
 
     /**
     * 加密文件
+    *    使用{@link ChunkCipher}分块并行加密
     * @param source 源文件对象
     * @param destination 目标文件对象
     * @param key 加密密钥
     * @return 加密成功则为true
     */
     public static boolean encrypt(File source, File destination, String key) {
-        FileInputStream fis = null;
-        FileOutputStream fos = null;
-        try {
-            checkSame(source, destination);
-            createFile(destination);
-
-            fis = new FileInputStream(source);
-            fos = new FileOutputStream(destination);
-            return performCrypt(fis.getChannel(), fos.getChannel(), getCipher(key, Cipher.ENCRYPT_MODE));
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        return ChunkCipher.encrypt(source, destination, key);
     }
 
     /**
     * 解密文件
+    *    使用{@link ChunkCipher}分块并行解密
     * @param source 源文件对象
     * @param destination 目标文件对象
     * @param key 解密密钥
     * @return 解密成功则为true
     */
     public static boolean decrypt(File source, File destination, String key) {
+        return ChunkCipher.decrypt(source, destination, key);
+    }
+
+    /**
+     * 单次读取文件,同时计算多个摘要和校验和
+     *    通过FileChannel读取,复用直接缓冲区,大文件使用内存映射,内存占用与文件大小无关
+     * @param f 文件对象
+     * @param digests 摘要算法(如MD5、SHA1),可为null
+     * @param checksums 校验和(如CRC32),可为null
+     * @return 读取成功则为true
+     */
+    public static boolean digest(File f, MessageDigest[] digests, Checksum[] checksums) {
         FileInputStream fis = null;
-        FileOutputStream fos = null;
         try {
-            checkSame(source, destination);
-            createFile(destination);
-
-            fis = new FileInputStream(source);
-            fos = new FileOutputStream(destination);
-            return performCrypt(fis.getChannel(), fos.getChannel(), getCipher(key, Cipher.DECRYPT_MODE));
-        } catch (Exception e) {
+            fis = new FileInputStream(f);
+            FileChannel ch = fis.getChannel();
+            long size = ch.size();
+            byte[] chunk = checksums == null || checksums.length == 0 ? null : DIGEST_CHUNK.get();
+            if (size >= MAP_THRESHOLD) {
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    ByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+                    update(window, digests, checksums, chunk);
+                }
+            } else {
+                ByteBuffer buf = DIGEST_BUFFER.get();
+                buf.clear();
+                while (ch.read(buf) != -1) {
+                    buf.flip();
+                    update(buf, digests, checksums, chunk);
+                    buf.clear();
+                }
+            }
+            return true;
+        } catch (IOException e) {
             e.printStackTrace();
             return false;
         } finally {
@@ -561,13 +571,6 @@ public class FileUtils {
                     e.printStackTrace();
                 }
             }
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
@@ -619,7 +622,7 @@ public class FileUtils {
 
         switch (t1) {
             case TYPE_FILE:     //md5 && sha1
-                return md5(f1).equals(md5(f2)) && sha1(f1).equals(sha1(f2));
+                return isSameContent(f1, f2);
             case TYPE_DIR:      //子文件相对路径 && md5 && sha1
                 File[] f1List = listChildren(f1);
                 File[] f2List = listChildren(f2);
@@ -633,7 +636,7 @@ public class FileUtils {
                     if (f2File == null) {
                         return false;
                     }
-                    if (!md5(f1File).equals(md5(f2File)) || !sha1(f1File).equals(sha1(f2File))) {
+                    if (!isSameContent(f1File, f2File)) {
                         return false;
                     }
                     f2Map.remove(relativePath);
@@ -714,88 +717,73 @@ public class FileUtils {
         }
     }
 
-    private static Cipher getCipher(String key, int mode) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
-        MessageDigest md = MessageDigest.getInstance("md5");
-        byte[] digestOfPassword = md.digest(key.getBytes());
-        byte[] keyBytes = new byte[24];
-        System.arraycopy(digestOfPassword, 0, keyBytes, 0, Math.min(digestOfPassword.length, 24));
-        for (int j = 0, k = 16; j < 8;) {
-            keyBytes[k++] = keyBytes[j++];
-        }
-
-        SecretKey secret = new SecretKeySpec(keyBytes, "DESede");
-        IvParameterSpec iv = new IvParameterSpec(new byte[8]);
-        Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-        cipher.init(mode, secret, iv);
-
-
-//        KeyGenerator kgen = KeyGenerator.getInstance("AES");
-//        kgen.init(128, new SecureRandom(key.getBytes()));
-//        SecretKey secretKey = kgen.generateKey();
-//        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-//        cipher.init(mode, secretKey);
-
-        return cipher;
+    //计算文件hash
+    private static String hash(File f, String algorithm) {
+        String[] hashes = hash(f, new String[]{algorithm});
+        return hashes == null ? null : hashes[0];
     }
 
-    private static boolean performCrypt(FileChannel fis, FileChannel fos, Cipher cipher) {
+    //单次读取计算多个hash
+    private static String[] hash(File f, String[] algorithms) {
         try {
-            ByteBuffer byteData = ByteBuffer.allocate(1024);
-            while (fis.read(byteData) != -1) {
-                byteData.flip();
-
-                byte[] byteList = new byte[1024];
-                int remain = byteData.remaining();
-                byteData.get(byteList, 0, remain);
-                for (;remain < 1024; remain++) {
-                    byteList[remain] = -1;
-                }
-
-                byte[] bytes = cipher.doFinal(byteList);
-                fos.write(ByteBuffer.wrap(bytes));
-                byteData.clear();
+            MessageDigest[] digests = new MessageDigest[algorithms.length];
+            for (int i = 0; i < algorithms.length; i++) {
+                digests[i] = MessageDigest.getInstance(algorithms[i]);
             }
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (!digest(f, digests, null)) {
+                return null;
             }
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            String[] hashes = new String[digests.length];
+            for (int i = 0; i < digests.length; i++) {
+                hashes[i] = toHex(digests[i].digest());
             }
+            return hashes;
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
         }
     }
 
-    //计算文件hash
-    private static String hash(File f, String algorithm) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance(algorithm);
-            digest.update(read(f));
-            byte[] b = digest.digest();
-            StringBuffer hexValue = new StringBuffer();
-            for (int i = 0; i < b.length; i++) {
-                int val = (b[i]) & 0xff;
-                if (val < 16) {
-                    hexValue.append("0");
+    private static String toHex(byte[] b) {
+        StringBuffer hexValue = new StringBuffer();
+        for (int i = 0; i < b.length; i++) {
+            int val = (b[i]) & 0xff;
+            if (val < 16) {
+                hexValue.append("0");
+            }
+            hexValue.append(Integer.toHexString(val));
+        }
+        return hexValue.toString();
+    }
+
+    //比较文件内容,每个文件只读取一次同时计算md5和sha1
+    private static boolean isSameContent(File f1, File f2) {
+        if (f1.length() != f2.length()) {
+            return false;
+        }
+        String[] h1 = hash(f1, new String[]{"MD5", "SHA1"});
+        String[] h2 = hash(f2, new String[]{"MD5", "SHA1"});
+        return h1 != null && h2 != null && Arrays.equals(h1, h2);
+    }
+
+    //将缓冲区内容送入各摘要和校验和
+    private static void update(ByteBuffer buf, MessageDigest[] digests, Checksum[] checksums, byte[] chunk) {
+        if (chunk != null) {
+            ByteBuffer copy = buf.duplicate();
+            while (copy.hasRemaining()) {
+                int len = Math.min(chunk.length, copy.remaining());
+                copy.get(chunk, 0, len);
+                for (Checksum checksum : checksums) {
+                    checksum.update(chunk, 0, len);
                 }
-                hexValue.append(Integer.toHexString(val));
             }
-            return hexValue.toString();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
         }
+        if (digests != null) {
+            for (MessageDigest digest : digests) {
+                digest.update(buf.duplicate());
+            }
+        }
+        buf.position(buf.limit());
     }
 
     //检查源文件与目标文件是否相同,相同则抛出异常
@@ -2,8 +2,18 @@ package jcommon.util;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * 反射调用
+ *    类、变量和方法只查找一次,缓存可直接使用的Field/Method(API 19无MethodHandle);查找失败同样缓存,不再重复抛出异常
+ */
 public class RefInvoke {
+    private static final Object MISSING = new Object();
+    private static final ConcurrentHashMap<String, Object> sClasses = new ConcurrentHashMap<String, Object>();
+    private static final ConcurrentHashMap<Key, Object> sMembers = new ConcurrentHashMap<Key, Object>();
+
     /**
      * 执行静态方法
      * @param className
@@ -14,7 +24,7 @@ public class RefInvoke {
      */
     public static Object invokeStaticMethod(String classname, String method, Class<?>[] paramType, Object[] param) {
         try {
-            return invokeStaticMethod(Class.forName(classname), method, paramType, param);
+            return invokeStaticMethod(forName(classname), method, paramType, param);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -44,7 +54,7 @@ public class RefInvoke {
      */
     public static Object invokeMethod(Object obj, String classname, String method, Class<?>[] paramType, Object[] param) {
         try {
-            return invokeMethod(obj, Class.forName(classname), method, paramType, param);
+            return invokeMethod(obj, forName(classname), method, paramType, param);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -62,9 +72,8 @@ public class RefInvoke {
      */
     public static Object invokeMethod(Object obj, Class<?> clazz, String method, Class<?>[] paramType, Object[] param) {
         try {
-            Method m = clazz.getMethod(method, paramType);
-            m.setAccessible(true);
-            return m.invoke(obj, param);
+            Method m = findMethod(clazz, method, paramType);
+            return m == null ? null : m.invoke(obj, param);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -79,7 +88,7 @@ public class RefInvoke {
      */
     public static Object getStaticField(String classname, String field) {
         try {
-            return getStaticField(Class.forName(classname), field);
+            return getStaticField(forName(classname), field);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -105,7 +114,7 @@ public class RefInvoke {
      */
     public static Object getField(Object obj, String classname, String field) {
         try {
-            return getField(obj, Class.forName(classname), field);
+            return getField(obj, forName(classname), field);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -121,9 +130,8 @@ public class RefInvoke {
      */
     public static Object getField(Object obj, Class<?> clazz, String field) {
         try {
-            Field f = clazz.getDeclaredField(field);
-            f.setAccessible(true);
-            return f.get(obj);
+            Field f = findField(clazz, field);
+            return f == null ? null : f.get(obj);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -138,7 +146,7 @@ public class RefInvoke {
      */
     public static void setStaticField(String classname, String field, Object value) {
         try {
-            setStaticField(Class.forName(classname), field, value);
+            setStaticField(forName(classname), field, value);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -163,7 +171,7 @@ public class RefInvoke {
      */
     public static void setField(Object obj, String classname, String field, Object value) {
         try {
-            setField(obj, Class.forName(classname), field, value);
+            setField(obj, forName(classname), field, value);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -178,13 +186,187 @@ public class RefInvoke {
      */
     public static void setField(Object obj, Class<?> clazz, String field, Object value) {
         try {
-            Field f = clazz.getDeclaredField(field);
-            f.setAccessible(true);
-            f.set(obj, value);
+            Field f = findField(clazz, field);
+            if (f != null) {
+                f.set(obj, value);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 获取int型实例变量(不装箱)
+     * @param obj
+     * @param clazz
+     * @param field
+     * @param defValue 变量不存在时的返回值
+     * @return
+     */
+    public static int getIntField(Object obj, Class<?> clazz, String field, int defValue) {
+        try {
+            Field f = findField(clazz, field);
+            return f == null ? defValue : f.getInt(obj);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defValue;
+        }
+    }
+
+    /**
+     * 获取long型实例变量(不装箱)
+     * @param obj
+     * @param clazz
+     * @param field
+     * @param defValue 变量不存在时的返回值
+     * @return
+     */
+    public static long getLongField(Object obj, Class<?> clazz, String field, long defValue) {
+        try {
+            Field f = findField(clazz, field);
+            return f == null ? defValue : f.getLong(obj);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defValue;
+        }
+    }
+
+    /**
+     * 获取boolean型实例变量(不装箱)
+     * @param obj
+     * @param clazz
+     * @param field
+     * @param defValue 变量不存在时的返回值
+     * @return
+     */
+    public static boolean getBooleanField(Object obj, Class<?> clazz, String field, boolean defValue) {
+        try {
+            Field f = findField(clazz, field);
+            return f == null ? defValue : f.getBoolean(obj);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defValue;
+        }
+    }
+
+    /**
+     * 设置int型实例变量(不装箱)
+     * @param obj
+     * @param clazz
+     * @param field
+     * @param value
+     */
+    public static void setIntField(Object obj, Class<?> clazz, String field, int value) {
+        try {
+            Field f = findField(clazz, field);
+            if (f != null) {
+                f.setInt(obj, value);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 查找类(结果缓存)
+     * @param classname
+     * @return 不存在则为null
+     */
+    public static Class<?> forName(String classname) {
+        Object c = sClasses.get(classname);
+        if (c == null) {
+            try {
+                c = Class.forName(classname);
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+                c = MISSING;
+            }
+            sClasses.put(classname, c);
+        }
+        return c == MISSING ? null : (Class<?>) c;
+    }
+
+    /**
+     * 查找已设置可访问的变量(结果缓存),循环中可先取得Field再直接使用
+     * @param clazz
+     * @param field
+     * @return 不存在则为null
+     */
+    public static Field findField(Class<?> clazz, String field) {
+        if (clazz == null) {
+            return null;
+        }
+        Key key = new Key(clazz, field, null);
+        Object f = sMembers.get(key);
+        if (f == null) {
+            try {
+                Field found = clazz.getDeclaredField(field);
+                found.setAccessible(true);
+                f = found;
+            } catch (Exception e) {
+                e.printStackTrace();
+                f = MISSING;
+            }
+            sMembers.put(key, f);
+        }
+        return f == MISSING ? null : (Field) f;
+    }
+
+    /**
+     * 查找已设置可访问的public方法(结果缓存)
+     * @param clazz
+     * @param method
+     * @param paramType
+     * @return 不存在则为null
+     */
+    public static Method findMethod(Class<?> clazz, String method, Class<?>[] paramType) {
+        if (clazz == null) {
+            return null;
+        }
+        Key key = new Key(clazz, method, paramType == null ? new Class<?>[0] : paramType);
+        Object m = sMembers.get(key);
+        if (m == null) {
+            try {
+                Method found = clazz.getMethod(method, paramType);
+                found.setAccessible(true);
+                m = found;
+            } catch (Exception e) {
+                e.printStackTrace();
+                m = MISSING;
+            }
+            sMembers.put(key, m);
+        }
+        return m == MISSING ? null : (Method) m;
+    }
+
+    //缓存键:类、成员名、参数类型(变量为null)
+    private static class Key {
+        private final Class<?> mClass;
+        private final String mName;
+        private final Class<?>[] mParams;
+        private final int mHash;
+
+        Key(Class<?> clazz, String name, Class<?>[] params) {
+            mClass = clazz;
+            mName = name;
+            mParams = params;
+            mHash = (clazz.hashCode() * 31 + name.hashCode()) * 31 + Arrays.hashCode(params);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return mClass == k.mClass && mName.equals(k.mName) && Arrays.equals(mParams, k.mParams);
+        }
+    }
+
     private RefInvoke() {}
 }
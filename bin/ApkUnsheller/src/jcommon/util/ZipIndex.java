@@ -0,0 +1,471 @@
+package jcommon.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * zip包中央目录索引
+ *    打开时只解析一次结束记录和中央目录,之后按文件名直接定位读取,不再从头扫描zip包;
+ *    同一索引可供多次读取复用,读取使用定位读,可多线程同时读取不同文件
+ */
+public class ZipIndex implements Closeable {
+    static final int LOCAL_SIG = 0x04034b50;
+    static final int CENTRAL_SIG = 0x02014b50;
+    static final int END_SIG = 0x06054b50;
+    static final int LOCAL_HEADER_LEN = 30;
+    static final int CENTRAL_HEADER_LEN = 46;
+    static final int END_LEN = 22;
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private File mZip;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private List<Entry> mEntries;
+    private Map<String, Entry> mNames;
+
+    /**
+     * zip包文件记录(对应中央目录中的一条记录)
+     */
+    public static class Entry {
+        byte[] header;      //固定46字节部分
+        byte[] name;
+        byte[] extra;
+        byte[] comment;
+        String path;
+
+        Entry(byte[] header, byte[] name, byte[] extra, byte[] comment, String path) {
+            this.header = header;
+            this.name = name;
+            this.extra = extra;
+            this.comment = comment;
+            this.path = path;
+        }
+
+        /**
+         * @return 文件在zip包的相对路径
+         */
+        public String getName() {
+            return path;
+        }
+
+        /**
+         * @return 压缩方式,0为STORED,8为DEFLATED
+         */
+        public int getMethod() {
+            return getShort(header, 10);
+        }
+
+        public long getCrc() {
+            return getInt(header, 16);
+        }
+
+        public long getCompressedSize() {
+            return getInt(header, 20);
+        }
+
+        public long getSize() {
+            return getInt(header, 24);
+        }
+
+        public boolean isDirectory() {
+            return path.endsWith("/");
+        }
+
+        int getFlags() {
+            return getShort(header, 8);
+        }
+
+        long getLocalOffset() {
+            return getInt(header, 42);
+        }
+    }
+
+    /**
+     * 打开zip包并建立索引
+     * @param zip zip包
+     * @throws IOException 非zip包或不支持的格式(zip64)
+     */
+    public ZipIndex(File zip) throws IOException {
+        mZip = zip;
+        mFile = new RandomAccessFile(zip, "r");
+        try {
+            mChannel = mFile.getChannel();
+            buildIndex();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 在channel上建立索引(如{@link ChunkCipher#openChannel}返回的解密视图)
+     * @param channel zip包数据,需支持定位读;索引关闭时一并关闭
+     * @throws IOException 非zip包或不支持的格式(zip64)
+     */
+    public ZipIndex(FileChannel channel) throws IOException {
+        mChannel = channel;
+        try {
+            buildIndex();
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    private void buildIndex() throws IOException {
+        mEntries = Collections.unmodifiableList(readCentralDirectory(mChannel));
+        mNames = new HashMap<String, Entry>(mEntries.size() * 2);
+        for (Entry entry : mEntries) {
+            if (!mNames.containsKey(entry.path)) {
+                mNames.put(entry.path, entry);
+            }
+        }
+    }
+
+    /**
+     * @return 索引对应的zip包,由channel建立的索引为null
+     */
+    public File getFile() {
+        return mZip;
+    }
+
+    /**
+     * @return 中央目录中的所有记录(按中央目录顺序)
+     */
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * 按相对路径查找文件
+     * @param path 文件在zip包的相对路径
+     * @return 不存在则返回null
+     */
+    public Entry getEntry(String path) {
+        return mNames.get(path.replace('\\', '/'));
+    }
+
+    /**
+     * 按多个相对路径查找文件
+     * @param paths 文件在zip包的相对路径
+     * @return 存在的文件记录(按参数顺序)
+     */
+    public List<Entry> find(String[] paths) {
+        List<Entry> result = new ArrayList<Entry>(paths.length);
+        for (String path : paths) {
+            Entry entry = getEntry(path);
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 查找符合正则表达式的文件
+     * @param regex 正则表达式,用于匹配相对路径;为null或空串则匹配所有文件
+     * @return 匹配到的文件记录(按中央目录顺序)
+     */
+    public List<Entry> find(String regex) {
+        if (regex == null || "".equals(regex)) {
+            return mEntries;
+        }
+        Pattern pattern = Pattern.compile(regex);
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : mEntries) {
+            if (pattern.matcher(entry.path).matches()) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 查找符合要求的文件
+     * @param filter 根据相对路径选择文件,为null则选择所有文件
+     * @return 选择的文件记录(按中央目录顺序)
+     */
+    public List<Entry> find(ZipUtils.ZipFilter filter) {
+        if (filter == null) {
+            return mEntries;
+        }
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : mEntries) {
+            if (filter.accept(entry.path)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 打开文件的解压输入流
+     * @param entry 文件记录
+     * @return 输入流,使用后需关闭
+     * @throws IOException
+     */
+    public InputStream getInputStream(Entry entry) throws IOException {
+        long offset = getDataOffset(entry);
+        int method = entry.getMethod();
+        if (method == STORED) {
+            return new ChannelInputStream(mChannel, offset, entry.getCompressedSize(), false);
+        } else if (method == DEFLATED) {
+            final Inflater inflater = new Inflater(true);
+            int size = (int) Math.max(1024, Math.min(BUFFER_SIZE, entry.getCompressedSize()));
+            return new InflaterInputStream(new ChannelInputStream(mChannel, offset, entry.getCompressedSize(), true), inflater, size) {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        inflater.end();
+                        super.close();
+                    }
+                }
+            };
+        } else {
+            throw new IOException("unsupported compression method " + method + ": " + entry.path);
+        }
+    }
+
+    /**
+     * 读取文件内容
+     * @param entry 文件记录
+     * @return 字节内容
+     * @throws IOException
+     */
+    public byte[] read(Entry entry) throws IOException {
+        long size = entry.getSize();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("file too large: " + entry.path);
+        }
+        byte[] data = new byte[(int) size];
+        InputStream in = getInputStream(entry);
+        try {
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n == -1) {
+                    throw new IOException("unexpected end of zip: " + entry.path);
+                }
+                off += n;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 读取压缩前内容中的一段(STORED方式直接定位,DEFLATED方式需解压跳过前面内容)
+     * @param entry 文件记录
+     * @param offset 跳过的字节数
+     * @param length 读取字节数
+     * @return 字节内容
+     * @throws IOException
+     */
+    public byte[] read(Entry entry, long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > entry.getSize()) {
+            throw new IOException("range out of file: " + entry.path);
+        }
+        byte[] data = new byte[length];
+        if (entry.getMethod() == STORED) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            readFully(mChannel, buf, getDataOffset(entry) + offset);
+            return data;
+        }
+        InputStream in = getInputStream(entry);
+        try {
+            long skip = offset;
+            while (skip > 0) {
+                long n = in.skip(skip);
+                if (n <= 0) {
+                    throw new IOException("unexpected end of zip: " + entry.path);
+                }
+                skip -= n;
+            }
+            int off = 0;
+            while (off < length) {
+                int n = in.read(data, off, length - off);
+                if (n == -1) {
+                    throw new IOException("unexpected end of zip: " + entry.path);
+                }
+                off += n;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mFile != null) {
+            mFile.close();
+        } else {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * @return zip包数据的channel,只能用于定位读,不能改变position
+     */
+    public FileChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * 根据本地文件头计算数据起始位置(STORED方式即为文件内容)
+     * @param entry 文件记录
+     * @return 数据在zip包中的位置
+     * @throws IOException
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(mChannel, local, entry.getLocalOffset());
+        if (local.getInt(0) != LOCAL_SIG) {
+            throw new IOException("bad local header: " + entry.path);
+        }
+        int nameLen = local.getShort(26) & 0xffff;
+        int extraLen = local.getShort(28) & 0xffff;
+        return entry.getLocalOffset() + LOCAL_HEADER_LEN + nameLen + extraLen;
+    }
+
+    //读取中央目录
+    private static List<Entry> readCentralDirectory(FileChannel src) throws IOException {
+        long size = src.size();
+        int tail = (int) Math.min(size, END_LEN + 0xffff);
+        ByteBuffer buf = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(src, buf, size - tail);
+
+        int end = -1;
+        for (int i = tail - END_LEN; i >= 0; i--) {
+            if (buf.getInt(i) == END_SIG) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new IOException("end of central directory not found.");
+        }
+        int count = buf.getShort(end + 10) & 0xffff;
+        long cdSize = buf.getInt(end + 12) & 0xffffffffL;
+        long cdOffset = buf.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || cdOffset == 0xffffffffL) {
+            throw new IOException("zip64 is not supported.");
+        }
+
+        ByteBuffer cd = ByteBuffer.allocate((int) cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(src, cd, cdOffset);
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            if (cd.remaining() < CENTRAL_HEADER_LEN || cd.getInt(cd.position()) != CENTRAL_SIG) {
+                throw new IOException("bad central directory.");
+            }
+            byte[] header = new byte[CENTRAL_HEADER_LEN];
+            cd.get(header);
+            byte[] name = new byte[getShort(header, 28)];
+            byte[] extra = new byte[getShort(header, 30)];
+            byte[] comment = new byte[getShort(header, 32)];
+            cd.get(name);
+            cd.get(extra);
+            cd.get(comment);
+            entries.add(new Entry(header, name, extra, comment, new String(name, "UTF-8")));
+        }
+        return entries;
+    }
+
+    //读满缓冲区,完成后position置为0
+    static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("unexpected end of zip.");
+            }
+        }
+        buf.flip();
+    }
+
+    static int getShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    static long getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (long) (b[off + 3] & 0xff) << 24);
+    }
+
+    //FileChannel定位读的输入流,不影响channel的position
+    private static class ChannelInputStream extends InputStream {
+        private FileChannel channel;
+        private long position;
+        private long remaining;
+        private boolean dummyByte;      //Inflater(nowrap)需要在数据末尾多读一个字节
+
+        ChannelInputStream(FileChannel channel, long position, long length, boolean dummyByte) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+            this.dummyByte = dummyByte;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                if (dummyByte) {
+                    dummyByte = false;
+                    b[off] = 0;
+                    return 1;
+                }
+                return -1;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of zip.");
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, remaining));
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package jcommon.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * zip包重写工具
+ *    源zip包中保留的文件直接复制压缩后的字节(包括crc和大小),不经过解压和重新压缩;
+ *    可添加、替换或删除指定文件
+ */
+public class ZipRewriter {
+    private static final int FLAG_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private File mSource;
+    private List<ZipUtils.ZipFilter> mDrops = new ArrayList<ZipUtils.ZipFilter>();
+    private Map<String, Addition> mAdditions = new LinkedHashMap<String, Addition>();
+
+    //待添加的文件
+    private static class Addition {
+        File file;
+        byte[] data;
+        boolean compress;
+
+        long length() {
+            return file != null ? file.length() : data.length;
+        }
+
+        long time() {
+            return file != null ? file.lastModified() : System.currentTimeMillis();
+        }
+
+        InputStream open() throws IOException {
+            return file != null ? new FileInputStream(file) : new ByteArrayInputStream(data);
+        }
+    }
+
+    /**
+     * @param source 源zip包,为null时创建新zip包
+     */
+    public ZipRewriter(File source) {
+        mSource = source;
+    }
+
+    /**
+     * 删除源zip包中的文件
+     * @param path 文件在zip包的相对路径
+     * @return
+     */
+    public ZipRewriter drop(String path) {
+        final String p = path.replace('\\', '/');
+        return drop(new ZipUtils.ZipFilter() {
+            @Override
+            public boolean accept(String path) {
+                return path.equals(p);
+            }
+        });
+    }
+
+    /**
+     * 删除源zip包中符合要求的文件
+     * @param filter 根据相对路径选择要删除的文件
+     * @return
+     */
+    public ZipRewriter drop(ZipUtils.ZipFilter filter) {
+        mDrops.add(filter);
+        return this;
+    }
+
+    /**
+     * 添加文件(压缩方式),源zip包中有同路径文件时替换
+     * @param path 文件在zip包的相对路径
+     * @param file 要添加的文件
+     * @return
+     */
+    public ZipRewriter add(String path, File file) {
+        return add(path, file, true);
+    }
+
+    /**
+     * 添加文件,源zip包中有同路径文件时替换
+     * @param path 文件在zip包的相对路径
+     * @param file 要添加的文件
+     * @param compress false则以STORED方式保存
+     * @return
+     */
+    public ZipRewriter add(String path, File file, boolean compress) {
+        Addition a = new Addition();
+        a.file = file;
+        a.compress = compress;
+        mAdditions.put(path.replace('\\', '/'), a);
+        return this;
+    }
+
+    /**
+     * 添加文件(压缩方式),源zip包中有同路径文件时替换
+     * @param path 文件在zip包的相对路径
+     * @param data 文件内容
+     * @return
+     */
+    public ZipRewriter add(String path, byte[] data) {
+        return add(path, data, true);
+    }
+
+    /**
+     * 添加文件,源zip包中有同路径文件时替换
+     * @param path 文件在zip包的相对路径
+     * @param data 文件内容
+     * @param compress false则以STORED方式保存
+     * @return
+     */
+    public ZipRewriter add(String path, byte[] data, boolean compress) {
+        Addition a = new Addition();
+        a.data = data;
+        a.compress = compress;
+        mAdditions.put(path.replace('\\', '/'), a);
+        return this;
+    }
+
+    /**
+     * 生成新的zip包
+     *    被替换的文件保持原位置,新增文件追加在最后
+     * @param output 目标zip包,不能与源zip包相同
+     * @return 成功则为true
+     */
+    public boolean write(File output) {
+        ZipIndex in = null;
+        RandomAccessFile out = null;
+        try {
+            if (output.equals(mSource)) {
+                throw new IOException("Source is the same as destination");
+            }
+            FileUtils.delete(output);
+            FileUtils.createFile(output);
+
+            out = new RandomAccessFile(output, "rw");
+            FileChannel dst = out.getChannel();
+            List<ZipIndex.Entry> written = new ArrayList<ZipIndex.Entry>();
+            Map<String, Addition> additions = new LinkedHashMap<String, Addition>(mAdditions);
+
+            if (mSource != null) {
+                in = new ZipIndex(mSource);
+                for (ZipIndex.Entry entry : in.getEntries()) {
+                    Addition a = additions.remove(entry.path);
+                    if (a != null) {
+                        written.add(writeAddition(dst, entry.path, a));
+                    } else if (!isDropped(entry.path)) {
+                        written.add(copyRaw(in, dst, entry));
+                    }
+                }
+            }
+            for (Map.Entry<String, Addition> e : additions.entrySet()) {
+                written.add(writeAddition(dst, e.getKey(), e.getValue()));
+            }
+            writeCentralDirectory(dst, written);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private boolean isDropped(String path) {
+        for (ZipUtils.ZipFilter filter : mDrops) {
+            if (filter.accept(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //直接复制压缩后的内容,去掉data descriptor
+    private static ZipIndex.Entry copyRaw(ZipIndex index, FileChannel dst, ZipIndex.Entry entry) throws IOException {
+        FileChannel src = index.getChannel();
+        ByteBuffer local = ByteBuffer.allocate(ZipIndex.LOCAL_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        ZipIndex.readFully(src, local, entry.getLocalOffset());
+        if (local.getInt(0) != ZipIndex.LOCAL_SIG) {
+            throw new IOException("bad local header: " + entry.path);
+        }
+        int localNameLen = local.getShort(26) & 0xffff;
+        int extraLen = local.getShort(28) & 0xffff;
+        ByteBuffer extra = ByteBuffer.allocate(extraLen);
+        ZipIndex.readFully(src, extra, entry.getLocalOffset() + ZipIndex.LOCAL_HEADER_LEN + localNameLen);
+        long dataOffset = entry.getLocalOffset() + ZipIndex.LOCAL_HEADER_LEN + localNameLen + extraLen;
+
+        byte[] header = entry.header.clone();
+        putShort(header, 8, entry.getFlags() & ~FLAG_DESCRIPTOR);
+        putInt(header, 42, dst.position());
+        ZipIndex.Entry copy = new ZipIndex.Entry(header, entry.name, entry.extra, entry.comment, entry.path);
+
+        //本地文件头的crc和大小以中央目录为准
+        ByteBuffer out = ByteBuffer.allocate(ZipIndex.LOCAL_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(ZipIndex.LOCAL_SIG);
+        out.put(header, 6, 22);
+        out.putShort((short) copy.name.length);
+        out.putShort((short) extraLen);
+        out.flip();
+        writeFully(dst, out);
+        writeFully(dst, ByteBuffer.wrap(copy.name));
+        writeFully(dst, extra);
+
+        long remain = entry.getCompressedSize();
+        long pos = dataOffset;
+        while (remain > 0) {
+            long n = src.transferTo(pos, remain, dst);
+            if (n <= 0) {
+                throw new IOException("unexpected end of zip: " + entry.path);
+            }
+            pos += n;
+            remain -= n;
+        }
+        return copy;
+    }
+
+    //写入新增文件,写完数据后回填crc和大小
+    private static ZipIndex.Entry writeAddition(FileChannel dst, String path, Addition a) throws IOException {
+        byte[] name = path.getBytes("UTF-8");
+        int method = a.compress ? 8 : 0;
+        int dosTime = dosTime(a.time());
+        long headerOffset = dst.position();
+
+        ByteBuffer header = ByteBuffer.allocate(ZipIndex.LOCAL_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ZipIndex.LOCAL_SIG);
+        header.putShort((short) 20);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt(0);       //crc
+        header.putInt(0);       //压缩后大小
+        header.putInt(0);       //原大小
+        header.putShort((short) name.length);
+        header.putShort((short) 0);
+        header.flip();
+        writeFully(dst, header);
+        writeFully(dst, ByteBuffer.wrap(name));
+
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long compressedSize = 0;
+        InputStream in = a.open();
+        Deflater deflater = a.compress ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            byte[] out = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                crc.update(buf, 0, len);
+                size += len;
+                if (deflater == null) {
+                    writeFully(dst, ByteBuffer.wrap(buf, 0, len));
+                    compressedSize += len;
+                } else {
+                    deflater.setInput(buf, 0, len);
+                    while (!deflater.needsInput()) {
+                        int n = deflater.deflate(out);
+                        writeFully(dst, ByteBuffer.wrap(out, 0, n));
+                        compressedSize += n;
+                    }
+                }
+            }
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(out);
+                    writeFully(dst, ByteBuffer.wrap(out, 0, n));
+                    compressedSize += n;
+                }
+            }
+        } finally {
+            in.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        if (size != a.length() && a.file != null) {
+            throw new IOException("file changed while adding: " + path);
+        }
+        if (size >= 0xffffffffL || compressedSize >= 0xffffffffL) {
+            throw new IOException("zip64 is not supported.");
+        }
+
+        ByteBuffer sizes = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        sizes.putInt((int) crc.getValue());
+        sizes.putInt((int) compressedSize);
+        sizes.putInt((int) size);
+        sizes.flip();
+        long end = dst.position();
+        while (sizes.hasRemaining()) {
+            dst.write(sizes, headerOffset + 14 + sizes.position());
+        }
+        dst.position(end);
+
+        byte[] central = new byte[ZipIndex.CENTRAL_HEADER_LEN];
+        putInt(central, 0, ZipIndex.CENTRAL_SIG);
+        putShort(central, 4, 20);
+        putShort(central, 6, 20);
+        putShort(central, 8, FLAG_UTF8);
+        putShort(central, 10, method);
+        putInt(central, 12, dosTime);
+        putInt(central, 16, crc.getValue());
+        putInt(central, 20, compressedSize);
+        putInt(central, 24, size);
+        putShort(central, 28, name.length);
+        putInt(central, 42, headerOffset);
+        ZipIndex.Entry entry = new ZipIndex.Entry(central, name, new byte[0], new byte[0], path);
+        return entry;
+    }
+
+    //写入中央目录及结束记录
+    private static void writeCentralDirectory(FileChannel dst, List<ZipIndex.Entry> entries) throws IOException {
+        if (entries.size() >= 0xffff) {
+            throw new IOException("zip64 is not supported.");
+        }
+        long cdOffset = dst.position();
+        for (ZipIndex.Entry entry : entries) {
+            putShort(entry.header, 28, entry.name.length);
+            putShort(entry.header, 30, entry.extra.length);
+            putShort(entry.header, 32, entry.comment.length);
+            writeFully(dst, ByteBuffer.wrap(entry.header));
+            writeFully(dst, ByteBuffer.wrap(entry.name));
+            writeFully(dst, ByteBuffer.wrap(entry.extra));
+            writeFully(dst, ByteBuffer.wrap(entry.comment));
+        }
+        long cdSize = dst.position() - cdOffset;
+
+        ByteBuffer end = ByteBuffer.allocate(ZipIndex.END_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(ZipIndex.END_SIG);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) entries.size());
+        end.putShort((short) entries.size());
+        end.putInt((int) cdSize);
+        end.putInt((int) cdOffset);
+        end.putShort((short) 0);
+        end.flip();
+        writeFully(dst, end);
+    }
+
+    //转换为DOS时间格式
+    private static int dosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, long v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+}
@@ -1,21 +1,27 @@
 package jcommon.util;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 public class ZipUtils {
     private static final String separator = File.separator;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int UNZIP_BUFFER_SIZE = 256 * 1024;
 
     /**
      * 用于选择zip包文件路径
@@ -81,64 +87,115 @@ public class ZipUtils {
     }
 
     /**
-     * 解压缩
+     * 解压缩(按CPU核数并行)
      * @param zipfile 需要解压缩的zip包
      * @param descDir 解压后的目标目录
      */
     public static boolean unzip(File zipfile, File descDir) {
-        InputStream in = null;
-        OutputStream out = null;
-        ZipFile zf = null;
+        return unzip(zipfile, descDir, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * 并行解压缩
+     *    先检查所有文件路径,再只在开始时创建一次目录,各线程复用自己的缓冲区并通过定位读取zip包;
+     *    任一文件失败则停止,只删除本次已打开写入的文件(目录中原有但未写入的文件不受影响),错误按zip包中的顺序确定
+     * @param zipfile 需要解压缩的zip包
+     * @param descDir 解压后的目标目录
+     * @param threads 线程数,小于等于1时在当前线程解压
+     * @param preallocate 是否按原大小预分配输出文件
+     * @return
+     */
+    public static boolean unzip(File zipfile, File descDir, int threads, final boolean preallocate) {
+        ZipIndex index = null;
+        final List<ZipIndex.Entry> files = new ArrayList<ZipIndex.Entry>();
+        final List<File> targets = new ArrayList<File>();
+        boolean[] written = null;
         try {
-            zf = new ZipFile(zipfile);
-            if (!descDir.isDirectory()) {
-                descDir.mkdirs();
-            }
-            for (Enumeration<?> entries = zf.entries(); entries.hasMoreElements();) {
-                ZipEntry entry = ((ZipEntry) entries.nextElement());
-                String zipEntryName = entry.getName();
-                in = zf.getInputStream(entry);
-                File outFile = new File(descDir.getAbsolutePath() + File.separator + zipEntryName);
-                if (!outFile.exists()) {
-                    FileUtils.createFile(outFile);
+            index = new ZipIndex(zipfile);
+            String root = descDir.getCanonicalPath() + File.separator;
+            for (ZipIndex.Entry entry : index.getEntries()) {
+                File f = new File(descDir, entry.getName());
+                if (!(f.getCanonicalPath() + File.separator).startsWith(root)) {
+                    throw new IOException("entry is outside of the target dir: " + entry.getName());
                 }
-                out = new FileOutputStream(outFile);
-                byte[] buf1 = new byte[1024];
-                int len;
-                while ((len = in.read(buf1)) > 0) {
-                    out.write(buf1, 0, len);
+            }
+            Set<File> dirs = new TreeSet<File>();
+            dirs.add(descDir);
+            for (ZipIndex.Entry entry : index.getEntries()) {
+                File f = new File(descDir, entry.getName());
+                if (entry.isDirectory()) {
+                    dirs.add(f);
+                } else {
+                    dirs.add(f.getParentFile());
+                    files.add(entry);
+                    targets.add(f);
                 }
-                in.close();
-                out.close();
             }
-            in = null;
-            out = null;
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-            if (zf != null) {
+            for (File dir : dirs) {
+                dir.mkdirs();
+            }
+
+            final ZipIndex zip = index;
+            final boolean[] opened = new boolean[files.size()];
+            written = opened;
+            final IOException[] errors = new IOException[files.size()];
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicBoolean failed = new AtomicBoolean();
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[UNZIP_BUFFER_SIZE];
+                    int i;
+                    while (!failed.get() && (i = next.getAndIncrement()) < files.size()) {
+                        try {
+                            writeEntry(zip, files.get(i), targets.get(i), buffer, preallocate, opened, i);
+                        } catch (IOException e) {
+                            errors[i] = e;
+                            failed.set(true);
+                        } catch (RuntimeException e) {
+                            errors[i] = new IOException(e);
+                            failed.set(true);
+                        }
+                    }
+                }
+            };
+
+            threads = Math.min(threads, files.size());
+            if (threads <= 1) {
+                worker.run();
+            } else {
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
                 try {
-                    zf.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+                    for (int t = 0; t < threads; t++) {
+                        futures.add(pool.submit(worker));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } catch (Exception e) {
+                    failed.set(true);
+                    throw new IOException("unzip interrupted.", e);
+                } finally {
+                    pool.shutdown();
                 }
             }
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            for (IOException e : errors) {
+                if (e != null) {
+                    throw e;
                 }
             }
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            for (int i = 0; written != null && i < written.length; i++) {
+                if (written[i]) {
+                    targets.get(i).delete();
                 }
             }
+            return false;
+        } finally {
+            close(index);
         }
     }
 
@@ -149,32 +206,29 @@ public class ZipUtils {
      * @return 文件字节内容
      */
     public static byte[] read(File zip, String path) {
-        path = path.replace('\\', '/');
-        ByteArrayOutputStream bos = null;
-        ZipInputStream zis = null;
-        BufferedInputStream bis = null;
-        FileInputStream fis = null;
+        ZipIndex index = null;
         try {
-            bos = new ByteArrayOutputStream();
-            fis = new FileInputStream(zip);
-            bis = new BufferedInputStream(fis);
-            zis = new ZipInputStream(bis);
-            while (true) {
-                ZipEntry entry = zis.getNextEntry();
-                if (entry == null) {
-                    break;
-                }
-                if (entry.getName().equals(path)) {
-                    int i;
-                    byte[] buffer = new byte[1024];
-                    while ((i = zis.read(buffer)) != -1) {
-                        bos.write(buffer, 0, i);
-                    }
-                }
-                zis.closeEntry();
-            }
-            byte[] ret = bos.toByteArray();
-            if (ret.length == 0) {
+            index = new ZipIndex(zip);
+            return read(index, path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            close(index);
+        }
+    }
+
+    /**
+     * 读取zip包文件
+     * @param index 已打开的zip包索引,可在多次读取间复用
+     * @param path 文件在zip包的相对路径
+     * @return 文件字节内容
+     */
+    public static byte[] read(ZipIndex index, String path) {
+        try {
+            ZipIndex.Entry entry = index.getEntry(path);
+            byte[] ret = entry == null ? null : index.read(entry);
+            if (ret == null || ret.length == 0) {
                 throw new IOException("file not exists in zip.");
             } else {
                 return ret;
@@ -182,35 +236,6 @@ public class ZipUtils {
         } catch (IOException e) {
             e.printStackTrace();
             return null;
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (bis != null) {
-                try {
-                    bis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (zis != null) {
-                try {
-                    zis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (bos != null) {
-                try {
-                    bos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
@@ -222,72 +247,36 @@ public class ZipUtils {
      * @return
      */
     public static boolean extractFile(File zip, String path, File target) {
-        path = path.replace('\\', '/');
-        FileOutputStream fos = null;
-        ZipInputStream zis = null;
-        BufferedInputStream bis = null;
-        FileInputStream fis = null;
-        boolean searched = false;
+        ZipIndex index = null;
         try {
-            fis = new FileInputStream(zip);
-            bis = new BufferedInputStream(fis);
-            zis = new ZipInputStream(bis);
-            while (true) {
-                ZipEntry entry = zis.getNextEntry();
-                if (entry == null) {
-                    break;
-                }
-                if (entry.getName().equals(path)) {
-                    FileUtils.createFile(target);
-                    fos = new FileOutputStream(target);
-                    searched = true;
-                    int i;
-                    byte[] buffer = new byte[1024];
-                    while ((i = zis.read(buffer)) != -1) {
-                        fos.write(buffer, 0, i);
-                    }
-                    fos.close();
-                    fos = null;
-                }
-                zis.closeEntry();
-            }
-            if (!searched) {
-                throw new IOException("file not exists in zip.");
-            } else {
-                return true;
-            }
+            index = new ZipIndex(zip);
+            return extractFile(index, path, target);
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (bis != null) {
-                try {
-                    bis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (zis != null) {
-                try {
-                    zis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            close(index);
+        }
+    }
+
+    /**
+     * 从zip包提取文件
+     * @param index 已打开的zip包索引,可在多次读取间复用
+     * @param path 文件在zip包的相对路径
+     * @param target 目标文件
+     * @return
+     */
+    public static boolean extractFile(ZipIndex index, String path, File target) {
+        try {
+            ZipIndex.Entry entry = index.getEntry(path);
+            if (entry == null) {
+                throw new IOException("file not exists in zip.");
             }
+            writeEntry(index, entry, target);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
     }
 
@@ -298,18 +287,17 @@ public class ZipUtils {
      * @param outputDir 目标目录
      * @return
      */
-    public static boolean extract(File zip, final String[] paths, File outputDir) {
-        return extract(zip, new ZipFilter() {
-            @Override
-            public boolean accept(String path) {
-                for (String p : paths) {
-                    if (path.equals(p.replace('\\', '/'))) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-        }, outputDir);
+    public static boolean extract(File zip, String[] paths, File outputDir) {
+        ZipIndex index = null;
+        try {
+            index = new ZipIndex(zip);
+            return extract(index, index.find(paths), outputDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            close(index);
+        }
     }
 
     /**
@@ -319,13 +307,17 @@ public class ZipUtils {
      * @param dest 目标目录
      * @return
      */
-    public static boolean extract(File zip, final String regex, File outputDir) {
-        return extract(zip, new ZipFilter() {
-            @Override
-            public boolean accept(String path) {
-                return "".equals(regex) || regex == null || path.matches(regex);
-            }
-        }, outputDir);
+    public static boolean extract(File zip, String regex, File outputDir) {
+        ZipIndex index = null;
+        try {
+            index = new ZipIndex(zip);
+            return extract(index, index.find(regex), outputDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            close(index);
+        }
     }
 
     /**
@@ -336,76 +328,113 @@ public class ZipUtils {
      * @return
      */
     public static boolean extract(File zip, ZipFilter filter, File outputDir) {
+        ZipIndex index = null;
+        try {
+            index = new ZipIndex(zip);
+            return extract(index, index.find(filter), outputDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            close(index);
+        }
+    }
+
+    /**
+     * 从zip包提取已查找到的文件
+     * @param index 已打开的zip包索引,可在多次读取间复用
+     * @param entries 通过{@link ZipIndex#find}查找到的文件记录
+     * @param outputDir 目标目录
+     * @return
+     */
+    public static boolean extract(ZipIndex index, List<ZipIndex.Entry> entries, File outputDir) {
         outputDir.mkdirs();
-        FileOutputStream fos = null;
-        ZipInputStream zis = null;
-        BufferedInputStream bis = null;
-        FileInputStream fis = null;
-        boolean searched = false;
         try {
-            fis = new FileInputStream(zip);
-            bis = new BufferedInputStream(fis);
-            zis = new ZipInputStream(bis);
-            while (true) {
-                ZipEntry entry = zis.getNextEntry();
-                if (entry == null) {
-                    break;
-                }
-                if (filter == null || filter.accept(entry.getName())) {
-                    File f = new File(outputDir, entry.getName());
-                    FileUtils.createFile(f);
-                    fos = new FileOutputStream(f);
-                    searched = true;
-                    int i;
-                    byte[] buffer = new byte[1024];
-                    while ((i = zis.read(buffer)) != -1) {
-                        fos.write(buffer, 0, i);
-                    }
-                    fos.close();
-                    fos = null;
-                }
-                zis.closeEntry();
-            }
-            if (!searched) {
+            if (entries.isEmpty()) {
                 throw new IOException("file not exists in zip.");
-            } else {
-                return true;
             }
+            for (ZipIndex.Entry entry : entries) {
+                File f = new File(outputDir, entry.getName());
+                if (entry.isDirectory()) {
+                    f.mkdirs();
+                } else {
+                    writeEntry(index, entry, f);
+                }
+            }
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
             return false;
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        }
+    }
+
+    /**
+     * 复制zip包中符合要求的文件到新zip包
+     *    直接复制压缩后的字节,不经过解压和重新压缩;需要添加或替换文件参考{@link ZipRewriter}
+     * @param zip 源zip包
+     * @param filter 根据相对路径选择保留的文件,为null则保留所有文件
+     * @param output 目标zip包
+     * @return
+     */
+    public static boolean copy(File zip, final ZipFilter filter, File output) {
+        ZipRewriter rewriter = new ZipRewriter(zip);
+        if (filter != null) {
+            rewriter.drop(new ZipFilter() {
+                @Override
+                public boolean accept(String path) {
+                    return !filter.accept(path);
                 }
+            });
+        }
+        return rewriter.write(output);
+    }
+
+
+    //解压单个文件到目标文件
+    private static void writeEntry(ZipIndex index, ZipIndex.Entry entry, File target) throws IOException {
+        FileUtils.createFile(target);
+        writeEntry(index, entry, target, new byte[BUFFER_SIZE], false, null, 0);
+    }
+
+    //解压单个文件到目标文件,目标文件所在目录需已存在;目标文件打开后置opened[slot]为true(opened可为null)
+    private static void writeEntry(ZipIndex index, ZipIndex.Entry entry, File target, byte[] buffer, boolean preallocate,
+            boolean[] opened, int slot) throws IOException {
+        InputStream in = index.getInputStream(entry);
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(target, "rw");
+            if (opened != null) {
+                opened[slot] = true;
             }
-            if (bis != null) {
-                try {
-                    bis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (preallocate) {
+                out.setLength(entry.getSize());
             }
-            if (zis != null) {
-                try {
-                    zis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            long written = 0;
+            int i;
+            while ((i = in.read(buffer)) != -1) {
+                out.write(buffer, 0, i);
+                written += i;
             }
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (written != out.length()) {
+                out.setLength(written);
+            }
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
             }
         }
     }
 
+    private static void close(ZipIndex index) {
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
     //zipoutput添加文件
     private static void addFile(ZipOutputStream out, File file, String prefix) throws IOException {